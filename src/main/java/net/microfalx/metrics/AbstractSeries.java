@@ -3,10 +3,12 @@ package net.microfalx.metrics;
 import net.microfalx.lang.NamedIdentityAware;
 
 import java.time.Duration;
+import java.util.List;
 import java.util.OptionalDouble;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 import static java.time.Duration.ofMinutes;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
@@ -45,11 +47,7 @@ abstract class AbstractSeries extends NamedIdentityAware<String> implements Seri
     @Override
     public Series add(Series series) {
         requireNonNull(series);
-        for (Value value : series.getValues()) {
-            add(value);
-        }
-        afterChange();
-        return this;
+        return addAll(series.getValues());
     }
 
     @Override
@@ -64,6 +62,41 @@ abstract class AbstractSeries extends NamedIdentityAware<String> implements Seri
         return this;
     }
 
+    /**
+     * Adds a list of values (usually sorted by timestamp) to the series.
+     *
+     * @param values the values
+     * @return self
+     */
+    Series addAll(List<Value> values) {
+        for (Value value : values) {
+            add(value);
+        }
+        afterChange();
+        return this;
+    }
+
+    /**
+     * Passes the values of the series to a reader, without copying them when possible.
+     * <p>
+     * The reader must not keep (or change) the values, the series might hold a lock while the reader runs.
+     *
+     * @param reader the reader
+     * @param <T>    the type of the result
+     * @return the result of the reader
+     */
+    <T> T read(Function<List<Value>, T> reader) {
+        return reader.apply(getValues());
+    }
+
+    /**
+     * Removes the oldest values from the series.
+     *
+     * @param count the number of values to remove
+     * @return the series without the oldest values, self or a new instance
+     */
+    abstract Series trim(int count);
+
     protected void afterChange() {
         // empty by design
     }
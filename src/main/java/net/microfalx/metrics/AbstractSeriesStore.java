@@ -4,21 +4,41 @@ import net.microfalx.lang.ObjectUtils;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.temporal.Temporal;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
 
 import static java.time.Duration.ofMinutes;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+import static net.microfalx.lang.TimeUtils.toMillis;
 
 /**
  * Base class for all series stores.
  */
 public abstract class AbstractSeriesStore implements SeriesStore {
 
+    private static final Metrics METRICS = Metrics.SYSTEM.withGroup("Series Store");
+    private static final Set<AbstractSeriesStore> STORES = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static final int MERGE_METRICS_PER_TASK = 16;
+
+    static {
+        METRICS.getGauge("Memory", () -> (double) getEstimatedSize(SeriesMemoryStore.class));
+        METRICS.getGauge("Disk", () -> (double) getEstimatedSize(SqliteSeriesStore.class));
+        METRICS.getGauge("Series", () -> (double) getStores(SeriesMemoryStore.class).stream()
+                .mapToLong(store -> store.getMetrics().size()).sum());
+    }
+
     private volatile Duration retention = ofMinutes(15);
-    private final Map<Metric, Value> lastValues = new ConcurrentSkipListMap<>();
 
     private volatile Optional<LocalDateTime> earliestTimestamp;
+    private volatile RollupStore rollupStore;
+    private final Collection<Aggregation> aggregations = new CopyOnWriteArrayList<>();
+    private final Map<Metric, Value> lastValues = new ConcurrentHashMap<>();
 
     @Override
     public final Duration getRetention() {
@@ -32,6 +52,52 @@ public abstract class AbstractSeriesStore implements SeriesStore {
         return this;
     }
 
+    @Override
+    public Collection<Rollup> getRollups() {
+        RollupStore currentRollupStore = getRollupStore();
+        return currentRollupStore != null ? currentRollupStore.getRollups() : Collections.emptyList();
+    }
+
+    @Override
+    public SeriesStore setRollups(Collection<Rollup> rollups) {
+        requireNonNull(rollups);
+        this.rollupStore = rollups.isEmpty() ? null : new RollupStore(rollups);
+        return this;
+    }
+
+    @Override
+    public SeriesStore addAggregation(Aggregation aggregation) {
+        requireNonNull(aggregation);
+        if (!aggregation.isStreaming()) {
+            throw new IllegalArgumentException("Only streaming aggregations can be fed by a store");
+        }
+        aggregations.add(aggregation);
+        return this;
+    }
+
+    @Override
+    public SeriesStore removeAggregation(Aggregation aggregation) {
+        requireNonNull(aggregation);
+        aggregations.remove(aggregation);
+        return this;
+    }
+
+    @Override
+    public Series get(Metric metric, Temporal from, Temporal to, Duration step, Aggregation.Type type) {
+        requireNonNull(metric);
+        requireNonNull(from);
+        requireNonNull(to);
+        requireNonNull(step);
+        requireNonNull(type);
+        Series series = getRollup(metric, from, to, step, type);
+        if (series != null) return series;
+        series = get(metric, from, to);
+        Aggregation aggregation = new Aggregation().setType(type).setStep(step);
+        aggregation.add(metric, series);
+        Collection<Matrix> matrixes = aggregation.toMatrixes();
+        return matrixes.isEmpty() ? Series.create(series.getName()) : matrixes.iterator().next().toSeries(series.getName());
+    }
+
     @Override
     public OptionalDouble getAverage(Metric metric, Duration interval) {
         requireNonNull(interval);
@@ -62,7 +128,7 @@ public abstract class AbstractSeriesStore implements SeriesStore {
     @Override
     public Optional<LocalDateTime> getEarliestTimestamp(Metric metric) {
         requireNonNull(metric);
-        return get(metric).getFirst().map(Value::atLocalTime);
+        return getSeries(metric).getFirst().map(Value::atLocalTime);
     }
 
     @Override
@@ -79,8 +145,71 @@ public abstract class AbstractSeriesStore implements SeriesStore {
 
     @Override
     public Optional<LocalDateTime> getLatestTimestamp(Metric metric) {
+        return getLast(metric).map(Value::atLocalTime);
+    }
+
+    @Override
+    public Optional<Value> getLast(Metric metric) {
         requireNonNull(metric);
-        return get(metric).getLast().map(Value::atLocalTime);
+        Value value = lastValues.get(metric);
+        if (value != null) return Optional.of(value);
+        Optional<Value> loadedValue = loadLast(metric);
+        loadedValue.ifPresent(lastValue -> updateLast(metric, lastValue));
+        return loadedValue;
+    }
+
+    @Override
+    public Map<Metric, Value> getLast(Predicate<Metric> selector) {
+        requireNonNull(selector);
+        Map<Metric, Value> values = new HashMap<>();
+        for (Metric metric : getMetrics()) {
+            if (selector.test(metric)) getLast(metric).ifPresent(value -> values.put(metric, value));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<Metric, Double> getTop(Predicate<Metric> selector, Temporal from, Temporal to, Aggregation.Type type, int count) {
+        requireNonNull(selector);
+        requireNonNull(from);
+        requireNonNull(to);
+        requireNonNull(type);
+        if (!RollupStore.isSupported(type)) throw new IllegalArgumentException("Unsupported statistic: " + type);
+        BoundedHeap<Metric> heap = new BoundedHeap<>(count);
+        int iteration = 0;
+        for (Metric metric : getMetrics()) {
+            Deadline.check(iteration++);
+            if (!selector.test(metric)) continue;
+            getStatistic(metric, from, to, type).ifPresent(statistic -> heap.add(metric, statistic));
+        }
+        Map<Metric, Double> top = new LinkedHashMap<>();
+        for (BoundedHeap.Entry<Metric> entry : heap.getEntries()) {
+            top.put(entry.getItem(), entry.getScore());
+        }
+        return top;
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        long size = 0;
+        for (Metric metric : getMetrics()) {
+            size += getEstimatedSize(metric);
+        }
+        return size;
+    }
+
+    @Override
+    public Map<Metric, Long> getEstimatedSizes() {
+        List<Map.Entry<Metric, Long>> sizes = new ArrayList<>();
+        for (Metric metric : getMetrics()) {
+            sizes.add(new AbstractMap.SimpleImmutableEntry<>(metric, getEstimatedSize(metric)));
+        }
+        sizes.sort(Map.Entry.<Metric, Long>comparingByValue().reversed());
+        Map<Metric, Long> sortedSizes = new LinkedHashMap<>();
+        for (Map.Entry<Metric, Long> size : sizes) {
+            sortedSizes.put(size.getKey(), size.getValue());
+        }
+        return sortedSizes;
     }
 
     @Override
@@ -92,21 +221,18 @@ public abstract class AbstractSeriesStore implements SeriesStore {
     @Override
     public void add(Collection<SeriesStore> seriesStores, boolean average) {
         requireNonNull(seriesStores);
-        Set<Metric> metrics = seriesStores.isEmpty() ? Collections.emptySet() : seriesStores.iterator().next().getMetrics();
-        if (metrics.isEmpty()) return;
+        if (seriesStores.isEmpty()) return;
         List<SeriesStore> sortedSeriesStores = new ArrayList<>(seriesStores);
         sortedSeriesStores.sort(Comparator.naturalOrder());
-        for (Metric metric : metrics) {
-            Series targetSeries = get(metric);
-            for (SeriesStore sortedSeriesStore : sortedSeriesStores) {
-                Series sourceSeries = sortedSeriesStore.get(metric);
-                if (average) {
-                    targetSeries.addAverage(sourceSeries);
-                } else {
-                    targetSeries.add(sourceSeries);
-                }
-            }
+        List<Set<Metric>> storeMetrics = new ArrayList<>(sortedSeriesStores.size());
+        Set<Metric> metrics = new HashSet<>();
+        for (SeriesStore seriesStore : sortedSeriesStores) {
+            Set<Metric> currentMetrics = seriesStore.getMetrics();
+            storeMetrics.add(currentMetrics);
+            metrics.addAll(currentMetrics);
         }
+        if (metrics.isEmpty()) return;
+        ForkJoinPool.commonPool().invoke(new MergeTask(new ArrayList<>(metrics), sortedSeriesStores, storeMetrics, average));
     }
 
     @Override
@@ -114,24 +240,591 @@ public abstract class AbstractSeriesStore implements SeriesStore {
         return ObjectUtils.compare(getEarliestTimestamp(), o.getEarliestTimestamp());
     }
 
-    protected final Value adaptValue(Metric metric, Value value) {
-        if (metric.getType() == Metric.Type.COUNTER) {
-            Value previousValue = lastValues.get(metric);
-            try {
-                if (previousValue == null) return null;
-                float newValue = value.asFloat();
-                float prevValue = previousValue.asFloat();
-                if (newValue >= prevValue) {
-                    return Value.create(value.getTimestamp(), newValue - prevValue);
-                } else {
-                    return null;
+    /**
+     * Returns the store holding the rollups.
+     *
+     * @return the store, null if rollups are not enabled
+     */
+    RollupStore getRollupStore() {
+        return rollupStore;
+    }
+
+    /**
+     * Returns the series from the rollups.
+     *
+     * @param metric the metric
+     * @param from   the start of the interval
+     * @param to     the end of the interval
+     * @param step   the step between values
+     * @param type   the aggregation type
+     * @return the series, null if rollups cannot answer
+     */
+    Series getRollup(Metric metric, Temporal from, Temporal to, Duration step, Aggregation.Type type) {
+        RollupStore currentRollupStore = getRollupStore();
+        if (currentRollupStore == null) return null;
+        return currentRollupStore.get(metric, metric.getName(), toMillis(from), toMillis(to), step.toMillis(), type);
+    }
+
+    /**
+     * Returns a statistic of the values within a time interval from the rollups.
+     *
+     * @param metric the metric
+     * @param from   the start of the interval
+     * @param to     the end of the interval
+     * @param type   the statistic
+     * @return the statistic, null if rollups cannot answer
+     */
+    OptionalDouble getRollupStatistic(Metric metric, Temporal from, Temporal to, Aggregation.Type type) {
+        RollupStore currentRollupStore = getRollupStore();
+        if (currentRollupStore == null) return null;
+        return currentRollupStore.getStatistic(metric, toMillis(from), toMillis(to), type);
+    }
+
+    /**
+     * Updates the rollups, the last value index and the streaming aggregations with a new value.
+     * <p>
+     * Used by stores which keep the series outside the heap; stores which hold the series in memory keep the
+     * rollups and the last value with the series and only call {@link #afterAdd(Metric, Value)}.
+     *
+     * @param metric the metric
+     * @param value  the value, as stored
+     */
+    protected final void afterIngest(Metric metric, Value value) {
+        RollupStore currentRollupStore = rollupStore;
+        if (currentRollupStore != null) currentRollupStore.add(metric, value);
+        updateLast(metric, value);
+        afterAdd(metric, value);
+    }
+
+    /**
+     * Updates the streaming aggregations with a new value.
+     * <p>
+     * Must be called without holding any lock of the store, the aggregations call their listeners.
+     *
+     * @param metric the metric
+     * @param value  the value, as stored
+     */
+    final void afterAdd(Metric metric, Value value) {
+        if (aggregations.isEmpty()) return;
+        for (Aggregation aggregation : aggregations) {
+            aggregation.add(metric, value);
+        }
+    }
+
+    /**
+     * Adds values which were already adapted (for example, merged from another store) to a series.
+     * <p>
+     * Unlike {@link #add(Metric, Value)}, counters are not converted to deltas. The rollups, the last value
+     * and the streaming aggregations are updated with the values, like for any other value added to the store.
+     *
+     * @param metric the metric
+     * @param values the values, sorted by timestamp
+     */
+    abstract void ingest(Metric metric, List<Value> values);
+
+    /**
+     * Loads the last value of a metric, when the value is not indexed (the store was not written since it was
+     * opened).
+     * <p>
+     * By default, the series is read; subclasses should provide a more efficient implementation.
+     *
+     * @param metric the metric
+     * @return the value, empty if the metric has no values
+     */
+    protected Optional<Value> loadLast(Metric metric) {
+        return getSeries(metric).getLast();
+    }
+
+    /**
+     * Returns a statistic of the values of a metric within a time interval.
+     * <p>
+     * The statistic is read from the rollups when available. Otherwise, if the series is entirely within the
+     * interval, the statistics cached by the series are used, else the values are aggregated in a single pass
+     * (without creating a new series or copying the values, when the series allows it). Subclasses which keep the series outside the heap should aggregate the
+     * values where they are stored.
+     *
+     * @param metric the metric
+     * @param from   the start of the interval
+     * @param to     the end of the interval
+     * @param type   the statistic ({@code SUM}, {@code MIN}, {@code MAX}, {@code AVG} or {@code COUNT})
+     * @return the statistic, empty if the metric has no values within the interval
+     */
+    protected OptionalDouble getStatistic(Metric metric, Temporal from, Temporal to, Aggregation.Type type) {
+        if (!RollupStore.isSupported(type)) throw new IllegalArgumentException("Unsupported statistic: " + type);
+        OptionalDouble statistic = getRollupStatistic(metric, from, to, type);
+        if (statistic != null) return statistic;
+        Series series = getSeries(metric);
+        Optional<Value> first = series.getFirst();
+        Optional<Value> last = series.getLast();
+        if (first.isEmpty() || last.isEmpty()) return OptionalDouble.empty();
+        if (first.get().isWithin(from, to) && last.get().isWithin(from, to)) {
+            switch (type) {
+                case MIN:
+                    return series.getMinimum();
+                case MAX:
+                    return series.getMaximum();
+                case AVG:
+                    return series.getAverage();
+                case COUNT:
+                    return OptionalDouble.of(series.getCount());
+            }
+        }
+        long fromMillis = toMillis(from);
+        long toMillis = toMillis(to);
+        if (series instanceof AbstractSeries) {
+            return ((AbstractSeries) series).read(values -> getStatistic(values, fromMillis, toMillis, type));
+        }
+        return getStatistic(series.getValues(), fromMillis, toMillis, type);
+    }
+
+    /**
+     * Aggregates the values within a time interval in a single pass (without creating a new series).
+     *
+     * @param values     the values
+     * @param fromMillis the start of the interval (millis since epoch, inclusive)
+     * @param toMillis   the end of the interval (millis since epoch, inclusive)
+     * @param type       the statistic ({@code SUM}, {@code MIN}, {@code MAX}, {@code AVG} or {@code COUNT})
+     * @return the statistic, empty if there are no values within the interval
+     */
+    static OptionalDouble getStatistic(Iterable<Value> values, long fromMillis, long toMillis, Aggregation.Type type) {
+        double sum = 0;
+        double minimum = Double.MAX_VALUE;
+        double maximum = -Double.MAX_VALUE;
+        long count = 0;
+        int iteration = 0;
+        for (Value value : values) {
+            Deadline.check(iteration++);
+            if (value.getTimestamp() < fromMillis || value.getTimestamp() > toMillis) continue;
+            double current = value.asDouble();
+            sum += current;
+            minimum = Math.min(minimum, current);
+            maximum = Math.max(maximum, current);
+            count++;
+        }
+        if (count == 0) return OptionalDouble.empty();
+        switch (type) {
+            case SUM:
+                return OptionalDouble.of(sum);
+            case MIN:
+                return OptionalDouble.of(minimum);
+            case MAX:
+                return OptionalDouble.of(maximum);
+            case AVG:
+                return OptionalDouble.of(sum / count);
+            case COUNT:
+                return OptionalDouble.of(count);
+            default:
+                throw new IllegalArgumentException("Unsupported statistic: " + type);
+        }
+    }
+
+    /**
+     * Discards all indexed last values.
+     */
+    protected final void clearLastValues() {
+        lastValues.clear();
+    }
+
+    private void updateLast(Metric metric, Value value) {
+        lastValues.merge(metric, value, (existing, current) ->
+                current.getTimestamp() >= existing.getTimestamp() ? current : existing);
+    }
+
+    /**
+     * Discards all rollups, keeping the rollup tiers.
+     */
+    protected final void clearRollups() {
+        RollupStore currentRollupStore = rollupStore;
+        if (currentRollupStore != null) rollupStore = new RollupStore(currentRollupStore.getRollups());
+    }
+
+    /**
+     * Returns the estimated size of a series, including its rollups.
+     *
+     * @param metric the metric
+     * @return a positive integer
+     */
+    protected long getEstimatedSize(Metric metric) {
+        return getSeries(metric).getEstimatedSize() + getRollupSize(metric);
+    }
+
+    /**
+     * Returns the estimated size of the rollups of all metrics.
+     *
+     * @return a positive integer
+     */
+    protected final long getRollupSize() {
+        RollupStore currentRollupStore = rollupStore;
+        return currentRollupStore != null ? currentRollupStore.getEstimatedSize() : 0;
+    }
+
+    /**
+     * Returns the estimated size of the rollups of a metric.
+     *
+     * @param metric the metric
+     * @return a positive integer
+     */
+    protected final long getRollupSize(Metric metric) {
+        RollupStore currentRollupStore = rollupStore;
+        return currentRollupStore != null ? currentRollupStore.getEstimatedSize(metric) : 0;
+    }
+
+    /**
+     * Returns the series of a metric, to be read (never modified) by this store.
+     * <p>
+     * By default, the series is the one returned by {@link #get(Metric)}; stores which return a view from
+     * {@link #get(Metric)} return the series they hold, without the view.
+     *
+     * @param metric the metric
+     * @return a non-null instance
+     */
+    Series getSeries(Metric metric) {
+        return get(metric);
+    }
+
+    /**
+     * Registers a store, to be reported by the store metrics.
+     * <p>
+     * Stores are registered by the factory methods, once they are fully constructed.
+     *
+     * @param store the store
+     * @param <S>   the type of store
+     * @return the store
+     */
+    static <S extends SeriesStore> S register(S store) {
+        requireNonNull(store);
+        if (store instanceof AbstractSeriesStore) STORES.add((AbstractSeriesStore) store);
+        return store;
+    }
+
+    private static <S extends AbstractSeriesStore> Collection<S> getStores(Class<S> type) {
+        List<S> stores = new ArrayList<>();
+        synchronized (STORES) {
+            for (AbstractSeriesStore store : STORES) {
+                if (type.isInstance(store)) stores.add(type.cast(store));
+            }
+        }
+        return stores;
+    }
+
+    private static long getEstimatedSize(Class<? extends AbstractSeriesStore> type) {
+        return getStores(type).stream().mapToLong(SeriesStore::getEstimatedSize).sum();
+    }
+
+    private void merge(Metric metric, List<SeriesStore> seriesStores, List<Set<Metric>> storeMetrics, boolean average) {
+        List<List<Value>> sourceValues = new ArrayList<>(seriesStores.size());
+        List<Value> averageValues = new ArrayList<>(seriesStores.size());
+        for (int i = 0; i < seriesStores.size(); i++) {
+            if (!storeMetrics.get(i).contains(metric)) continue;
+            Series sourceSeries = seriesStores.get(i).get(metric);
+            if (average) {
+                OptionalDouble sourceAverage = sourceSeries.getAverage();
+                if (sourceAverage.isPresent()) {
+                    long timestamp = sourceSeries.getFirst().get().getTimestamp();
+                    averageValues.add(Value.create(timestamp, (float) sourceAverage.getAsDouble()));
                 }
-            } finally {
-                lastValues.put(metric, value);
+            } else {
+                sourceValues.add(sourceSeries.getValues());
             }
-        } else {
-            return value;
         }
+        List<Value> mergedValues = average ? MetricUtils.merge(List.of(averageValues)) : MetricUtils.merge(sourceValues);
+        if (!mergedValues.isEmpty()) ingest(metric, mergedValues);
     }
 
+    /**
+     * A task which merges a range of metrics from multiple stores into this store.
+     * <p>
+     * Each metric is merged independently, so the metrics are split across the pool until a task holds
+     * a small enough number of metrics. The tasks inherit the deadline of the thread which started the merge.
+     */
+    private class MergeTask extends RecursiveAction {
+
+        private final List<Metric> metrics;
+        private final List<SeriesStore> seriesStores;
+        private final List<Set<Metric>> storeMetrics;
+        private final boolean average;
+        private final Deadline deadline = Deadline.current();
+
+        private MergeTask(List<Metric> metrics, List<SeriesStore> seriesStores, List<Set<Metric>> storeMetrics, boolean average) {
+            this.metrics = metrics;
+            this.seriesStores = seriesStores;
+            this.storeMetrics = storeMetrics;
+            this.average = average;
+        }
+
+        @Override
+        protected void compute() {
+            try (Deadline ignored = Deadline.inherit(deadline)) {
+                merge();
+            }
+        }
+
+        private void merge() {
+            if (metrics.size() <= MERGE_METRICS_PER_TASK) {
+                for (Metric metric : metrics) {
+                    Deadline.check();
+                    AbstractSeriesStore.this.merge(metric, seriesStores, storeMetrics, average);
+                }
+            } else {
+                int middle = metrics.size() / 2;
+                invokeAll(new MergeTask(metrics.subList(0, middle), seriesStores, storeMetrics, average),
+                        new MergeTask(metrics.subList(middle, metrics.size()), seriesStores, storeMetrics, average));
+            }
+        }
+    }
+
+    /**
+     * Holds a series and the state required to ingest values into it.
+     * <p>
+     * Counters are stored as deltas, so the holder keeps the previous (raw) value of the counter.
+     */
+    static class SeriesHolder {
+
+        private final Metric metric;
+        volatile Series series;
+        private boolean removed;
+
+        private boolean hasLastValue;
+        private float lastValue;
+        private volatile Value last;
+        private volatile long lastWrite;
+        private RollupStore rollupStore;
+        private volatile RollupStore.MetricRollups rollups;
+
+        SeriesHolder(Metric metric, Series series) {
+            this.metric = metric;
+            this.series = series;
+            this.last = series.getLast().orElse(null);
+        }
+
+        /**
+         * Returns the metric.
+         *
+         * @return a non-null instance
+         */
+        Metric getMetric() {
+            return metric;
+        }
+
+        /**
+         * Returns whether the holder was removed from the store; a removed holder does not accept values.
+         * <p>
+         * Must be called while holding the lock of the holder.
+         *
+         * @return {@code true} if removed, {@code false} otherwise
+         */
+        boolean isRemoved() {
+            return removed;
+        }
+
+        /**
+         * Marks the holder as removed from the store.
+         * <p>
+         * Must be called while holding the lock of the holder.
+         */
+        void markRemoved() {
+            removed = true;
+        }
+
+        /**
+         * Returns the most recent value (by timestamp) added to the series.
+         *
+         * @return the value, null if no value was added
+         */
+        Value getLast() {
+            return last;
+        }
+
+        /**
+         * Returns the time of the last write in this series.
+         *
+         * @return millis since epoch, 0 if the series was never written
+         */
+        long getLastWrite() {
+            return lastWrite;
+        }
+
+        /**
+         * Adapts and adds a raw value to the series.
+         * <p>
+         * A compacted series is expanded back before the value is added. The streaming aggregations are not
+         * updated, the caller passes the returned value to {@link #afterAdd(Metric, Value)} once the lock of
+         * the holder is released.
+         *
+         * @param value the raw value
+         * @param store the store which owns the series (rollups are updated)
+         * @return the value added to the series, null if no value was added
+         */
+        synchronized Value add(Value value, AbstractSeriesStore store) {
+            Value adaptedValue = adapt(value);
+            if (adaptedValue == null) return null;
+            updateRollups(adaptedValue, store);
+            expand();
+            series.add(adaptedValue);
+            updateLast(adaptedValue);
+            lastWrite = System.currentTimeMillis();
+            return adaptedValue;
+        }
+
+        /**
+         * Adds values which were already adapted to the series.
+         * <p>
+         * A compacted series is expanded back before the values are added. Like for {@link #add(Value, AbstractSeriesStore)},
+         * the streaming aggregations are updated by the caller, outside the lock of the holder.
+         *
+         * @param values the values, sorted by timestamp
+         * @param store  the store which owns the series (rollups are updated)
+         */
+        synchronized void addAll(List<Value> values, AbstractSeriesStore store) {
+            if (values.isEmpty()) return;
+            for (Value value : values) {
+                updateRollups(value, store);
+            }
+            append(values);
+            updateLast(values.get(values.size() - 1));
+            lastWrite = System.currentTimeMillis();
+        }
+
+        /**
+         * Removes values (usually the oldest ones) from the series.
+         * <p>
+         * Only the given values are removed: values added since they were read (even with older timestamps)
+         * and values already removed (for example by retention) are left untouched.
+         *
+         * @param values the values, sorted by timestamp
+         */
+        synchronized void remove(List<Value> values) {
+            if (values.isEmpty()) return;
+            List<Value> currentValues = series.getValues();
+            int count = 0;
+            while (count < values.size() && count < currentValues.size() && isSame(currentValues.get(count), values.get(count))) {
+                count++;
+            }
+            if (count == values.size()) {
+                trim(count);
+                return;
+            }
+            List<Value> sortedValues = new ArrayList<>(currentValues);
+            sortedValues.sort(Comparator.comparingLong(Value::getTimestamp));
+            List<Value> remainingValues = new ArrayList<>(currentValues.size());
+            int index = 0;
+            for (Value value : sortedValues) {
+                while (index < values.size() && values.get(index).getTimestamp() < value.getTimestamp()) index++;
+                if (index < values.size() && isSame(value, values.get(index))) {
+                    index++;
+                } else {
+                    remainingValues.add(value);
+                }
+            }
+            series = Series.create(series.getName(), remainingValues).setRetention(series.getRetention());
+        }
+
+        /**
+         * Compacts the series, if not already compacted.
+         *
+         * @return the difference in the estimated size
+         */
+        synchronized long compact() {
+            if (series instanceof CompactSeries || !(series instanceof AbstractSeries)) return 0;
+            long previousSize = series.getEstimatedSize();
+            series = series.compact().setRetention(series.getRetention());
+            return series.getEstimatedSize() - previousSize;
+        }
+
+        /**
+         * Removes the oldest values from the series.
+         *
+         * @param count the number of values to remove
+         * @return the difference in the estimated size
+         */
+        synchronized long trim(int count) {
+            if (!(series instanceof AbstractSeries)) return 0;
+            long previousSize = series.getEstimatedSize();
+            series = ((AbstractSeries) series).trim(count);
+            return series.getEstimatedSize() - previousSize;
+        }
+
+        /**
+         * Returns the estimated size of the series and of its rollups.
+         *
+         * @return a positive integer
+         */
+        long getEstimatedSize() {
+            RollupStore.MetricRollups currentRollups = rollups;
+            return series.getEstimatedSize() + (currentRollups != null ? currentRollups.getEstimatedSize() : 0);
+        }
+
+        /**
+         * Releases the rollups of the series, when the holder is removed from the store.
+         * <p>
+         * Must be called while holding the lock of the holder, before the holder is removed from the store.
+         */
+        void releaseRollups() {
+            if (rollups != null) rollupStore.remove(metric, rollups);
+        }
+
+        private void append(List<Value> values) {
+            expand();
+            if (series instanceof AbstractSeries) {
+                series = ((AbstractSeries) series).addAll(values);
+            } else {
+                series = series.add(Series.create(series.getName(), values));
+            }
+        }
+
+        private boolean isSame(Value value, Value otherValue) {
+            return value.getTimestamp() == otherValue.getTimestamp()
+                    && Float.floatToIntBits(value.asFloat()) == Float.floatToIntBits(otherValue.asFloat());
+        }
+
+        private void updateLast(Value value) {
+            if (last == null || value.getTimestamp() >= last.getTimestamp()) last = value;
+        }
+
+        private void updateRollups(Value value, AbstractSeriesStore store) {
+            RollupStore rollupStore = store.getRollupStore();
+            if (rollupStore == null) return;
+            if (this.rollupStore != rollupStore) {
+                this.rollupStore = rollupStore;
+                this.rollups = rollupStore.getOrCreate(metric);
+            }
+            rollups.add(value);
+        }
+
+        /**
+         * Expands a compacted series back to a series which accepts new values.
+         */
+        private void expand() {
+            if (!(series instanceof CompactSeries)) return;
+            series = Series.create(series.getName(), series.getValues()).setRetention(series.getRetention());
+        }
+
+        /**
+         * Adapts a raw value before it is added to the series.
+         * <p>
+         * Counters are converted to deltas. The first value of a counter only establishes the baseline and
+         * a value smaller than the previous one is considered a counter reset (the counter starts again from zero).
+         *
+         * @param value the raw value
+         * @return the value to store, null if there is nothing to store
+         */
+        private Value adapt(Value value) {
+            if (metric.getType() != Metric.Type.COUNTER) return value;
+            float newValue = value.asFloat();
+            float prevValue = lastValue;
+            boolean first = !hasLastValue;
+            hasLastValue = true;
+            lastValue = newValue;
+            if (first) return null;
+            return Value.create(value.getTimestamp(), newValue >= prevValue ? newValue - prevValue : newValue);
+        }
+
+        @Override
+        public String toString() {
+            return new StringJoiner(", ", SeriesHolder.class.getSimpleName() + "[", "]")
+                    .add("metric=" + metric)
+                    .add("series=" + series)
+                    .toString();
+        }
+    }
 }
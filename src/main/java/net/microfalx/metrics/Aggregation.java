@@ -2,21 +2,49 @@ package net.microfalx.metrics;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.Collectors;
 
+import static java.util.Collections.unmodifiableSet;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
 
 /**
  * An in-memory aggregator for metrics.
  * <p>
- * The default aggregation interval is 5 minutes.
+ * The default aggregation interval is 5 minutes. An aggregation can calculate several statistics
+ * (see {@link #setTypes(Type...)}) in a single pass over the values.
+ * <p>
+ * Values are aggregated per metric (name and labels). With {@link #setGroupBy(String...) group by}, only the
+ * given labels are kept and all metrics with the same values for those labels are aggregated together.
+ * <p>
+ * By default, the aggregation holds all buckets until {@link #toMatrixes()} is called. In
+ * {@link #setStreaming(Duration, Listener) streaming mode}, buckets older than the watermark (now minus the
+ * allowed lateness) are closed, passed to a listener and released, so the aggregation can be fed continuously
+ * (see {@link SeriesStore#addAggregation(Aggregation)}) in constant memory.
  */
 public class Aggregation {
 
+    private static final int PARALLEL_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The label which identifies the statistic of a matrix when more than one statistic is calculated.
+     */
+    public static final String STATISTIC_LABEL = "statistic";
+
     private Type type = Type.SUM;
+    private Set<Type> types = EnumSet.of(Type.SUM);
     private Duration step;
     private long stepAsMillis;
     private final Map<String, TimeSeries> timeSeries = new HashMap<>();
+    private List<String> groupBy = Collections.emptyList();
+    private final Map<String, TimeSeries> groups = new HashMap<>();
+
+    private Duration allowedLateness;
+    private long allowedLatenessAsMillis;
+    private Listener listener;
+    private long closedBucket = Long.MIN_VALUE;
+    private long lateCount;
 
     public Aggregation() {
         setStep(Duration.ofMinutes(5));
@@ -24,6 +52,8 @@ public class Aggregation {
 
     /**
      * Returns the aggregation type.
+     * <p>
+     * If more than one statistic is calculated, the first one is returned.
      *
      * @return a non-null instance
      */
@@ -38,9 +68,41 @@ public class Aggregation {
      * @return self
      */
     public Aggregation setType(Type type) {
-        requireNonNull(type);
+        return setTypes(type);
+    }
+
+    /**
+     * Returns the statistics calculated by this aggregation.
+     *
+     * @return a non-null instance
+     */
+    public Set<Type> getTypes() {
+        return unmodifiableSet(types);
+    }
+
+    /**
+     * Changes the statistics calculated by this aggregation.
+     *
+     * @param types the statistics
+     * @return self
+     */
+    public Aggregation setTypes(Type... types) {
+        requireNonNull(types);
+        return setTypes(Arrays.asList(types));
+    }
+
+    /**
+     * Changes the statistics calculated by this aggregation.
+     *
+     * @param types the statistics
+     * @return self
+     */
+    public Aggregation setTypes(Collection<Type> types) {
+        requireNonNull(types);
+        if (types.isEmpty()) throw new IllegalArgumentException("At least one statistic is required");
         checkStarted();
-        this.type = type;
+        this.type = types.iterator().next();
+        this.types = EnumSet.copyOf(types);
         return this;
     }
 
@@ -68,6 +130,95 @@ public class Aggregation {
         return this;
     }
 
+    /**
+     * Returns the labels kept by the aggregation.
+     *
+     * @return a non-null instance, empty if metrics are not grouped
+     */
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Changes the labels kept by the aggregation (like "sum by (service)").
+     * <p>
+     * All other labels (and the metric name) are collapsed, so metrics which have the same values for the kept
+     * labels are aggregated in the same time-series, named {@link Metric#UNNAMED}. The group key of each metric
+     * is calculated once.
+     *
+     * @param labels the labels to keep, empty to aggregate per metric
+     * @return self
+     */
+    public Aggregation setGroupBy(String... labels) {
+        requireNonNull(labels);
+        return setGroupBy(Arrays.asList(labels));
+    }
+
+    /**
+     * Changes the labels kept by the aggregation.
+     *
+     * @param labels the labels to keep, empty to aggregate per metric
+     * @return self
+     * @see #setGroupBy(String...)
+     */
+    public Aggregation setGroupBy(Collection<String> labels) {
+        requireNonNull(labels);
+        checkStarted();
+        this.groupBy = List.copyOf(labels);
+        return this;
+    }
+
+    /**
+     * Switches the aggregation to streaming mode.
+     * <p>
+     * In streaming mode, a bucket is closed once its end is older than the watermark (now minus the allowed
+     * lateness). Closed buckets are passed to the listener and released; values which arrive for a closed
+     * bucket are dropped (see {@link #getLateCount()}).
+     * <p>
+     * A streaming aggregation is thread-safe. The listener is called without holding any lock.
+     *
+     * @param allowedLateness how long a bucket is kept open after its end
+     * @param listener        the listener which receives the closed buckets
+     * @return self
+     */
+    public Aggregation setStreaming(Duration allowedLateness, Listener listener) {
+        requireNonNull(allowedLateness);
+        requireNonNull(listener);
+        if (allowedLateness.isNegative()) throw new IllegalArgumentException("Allowed lateness cannot be negative");
+        checkStarted();
+        this.allowedLateness = allowedLateness;
+        this.allowedLatenessAsMillis = allowedLateness.toMillis();
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Returns whether the aggregation is in streaming mode.
+     *
+     * @return {@code true} if streaming, {@code false} otherwise
+     */
+    public boolean isStreaming() {
+        return listener != null;
+    }
+
+    /**
+     * Returns how long a bucket is kept open after its end, in streaming mode.
+     *
+     * @return the lateness, null if not in streaming mode
+     */
+    public Duration getAllowedLateness() {
+        return allowedLateness;
+    }
+
+    /**
+     * Returns the number of values dropped because their bucket was already closed.
+     *
+     * @return a positive integer
+     */
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
     /**
      * Adds a new value for a metric to the aggregation.
      *
@@ -77,7 +228,38 @@ public class Aggregation {
     public void add(Metric metric, Value value) {
         requireNonNull(metric);
         requireNonNull(value);
-        getTimeSeries(metric).add(value);
+        if (listener == null) {
+            getTimeSeries(metric).add(value);
+            return;
+        }
+        Collection<Matrix> matrixes;
+        synchronized (this) {
+            matrixes = close(System.currentTimeMillis() - allowedLatenessAsMillis);
+            if (value.getTimestamp() / stepAsMillis < closedBucket) {
+                lateCount++;
+            } else {
+                getTimeSeries(metric).add(value);
+            }
+        }
+        fireClosed(matrixes);
+    }
+
+    /**
+     * Adds the values of a matrix to the aggregation.
+     *
+     * @param matrix the matrix
+     */
+    public void add(Matrix matrix) {
+        requireNonNull(matrix);
+        if (listener != null) {
+            add(matrix.getMetric(), matrix.getValues());
+            return;
+        }
+        TimeSeries timeSeries = getTimeSeries(matrix.getMetric());
+        for (int index = 0; index < matrix.getCount(); index++) {
+            Deadline.check(index);
+            timeSeries.add(matrix.getTimestamp(index), matrix.getValue(index));
+        }
     }
 
     /**
@@ -87,19 +269,92 @@ public class Aggregation {
      */
     public void add(Metric metric, Series series) {
         requireNonNull(series);
-        TimeSeries timeSeries = getTimeSeries(metric);
-        for (Value value : series.getValues()) {
-            timeSeries.add(value);
+        add(metric, series.getValues());
+    }
+
+    /**
+     * Closes (and passes to the listener) all buckets older than the watermark, in streaming mode.
+     * <p>
+     * Buckets are also closed as values are added, this method only needs to be called when no values
+     * arrive for a while.
+     */
+    public void advance() {
+        advance(System.currentTimeMillis());
+    }
+
+    void advance(long now) {
+        checkStreaming();
+        Collection<Matrix> matrixes;
+        synchronized (this) {
+            matrixes = close(now - allowedLatenessAsMillis);
         }
+        fireClosed(matrixes);
+    }
+
+    /**
+     * Closes (and passes to the listener) all buckets, in streaming mode.
+     * <p>
+     * Values which arrive later for the flushed buckets are still accepted (until the watermark passes them),
+     * and they will be passed to the listener in new buckets.
+     */
+    public void flush() {
+        checkStreaming();
+        Collection<Matrix> matrixes;
+        synchronized (this) {
+            matrixes = closeBefore(Long.MAX_VALUE);
+        }
+        fireClosed(matrixes);
+    }
+
+    /**
+     * Adds the values of many series to the aggregation, in parallel.
+     * <p>
+     * The series are split (across metrics and, for long series, across values) in chunks of similar size,
+     * which are aggregated into partial aggregations by the {@link ForkJoinPool#commonPool() common pool}.
+     * The partial aggregations are merged into this aggregation.
+     *
+     * @param series the series, by metric
+     */
+    public void addParallel(Map<Metric, ? extends Series> series) {
+        requireNonNull(series);
+        if (listener != null) throw new IllegalStateException("A streaming aggregation cannot be fed in parallel");
+        List<List<Chunk>> tasks = new ArrayList<>();
+        List<Chunk> chunks = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<Metric, ? extends Series> entry : series.entrySet()) {
+            List<Value> values = entry.getValue().getValues();
+            int index = 0;
+            while (index < values.size()) {
+                int end = Math.min(values.size(), index + PARALLEL_CHUNK_SIZE - size);
+                chunks.add(new Chunk(entry.getKey(), values.subList(index, end)));
+                size += end - index;
+                index = end;
+                if (size == PARALLEL_CHUNK_SIZE) {
+                    tasks.add(chunks);
+                    chunks = new ArrayList<>();
+                    size = 0;
+                }
+            }
+        }
+        if (!chunks.isEmpty()) tasks.add(chunks);
+        if (tasks.isEmpty()) return;
+        merge(ForkJoinPool.commonPool().invoke(new AggregateTask(tasks)));
     }
 
     /**
      * Merges to (partial) aggregations.
+     * <p>
+     * Each bucket keeps the sum, minimum, maximum and count of its values, so partial aggregations (per thread
+     * or per node) can be merged in any order and produce the same result as a single aggregation.
      *
      * @param aggregation the source aggregation
      */
     public void merge(Aggregation aggregation) {
         requireNonNull(aggregation);
+        if (stepAsMillis != aggregation.stepAsMillis) {
+            throw new MetricException("Cannot merge two aggregations with different steps, source: "
+                                      + aggregation.step + ", target: " + step);
+        }
         for (TimeSeries timeSeries : aggregation.timeSeries.values()) {
             getTimeSeries(timeSeries.metric).merge(timeSeries);
         }
@@ -111,7 +366,81 @@ public class Aggregation {
      * @return a non-null instance
      */
     public Collection<Matrix> toMatrixes() {
-        return timeSeries.values().stream().map(TimeSeries::toMatrix).collect(Collectors.toList());
+        if (types.size() == 1) return toMatrixes(type);
+        Collection<Matrix> matrixes = new ArrayList<>();
+        for (TimeSeries series : timeSeries.values()) {
+            for (Type statistic : types) {
+                matrixes.add(series.toMatrix(statistic, true));
+            }
+        }
+        return matrixes;
+    }
+
+    /**
+     * Returns the aggregations for one statistic as {@link Matrix matrixes}.
+     *
+     * @param type the statistic
+     * @return a non-null instance
+     */
+    public Collection<Matrix> toMatrixes(Type type) {
+        requireNonNull(type);
+        if (!types.contains(type)) throw new IllegalArgumentException("Statistic " + type + " is not calculated");
+        return timeSeries.values().stream().map(series -> series.toMatrix(type, false)).collect(Collectors.toList());
+    }
+
+    void add(Metric metric, List<Value> values) {
+        requireNonNull(metric);
+        if (listener != null) {
+            for (Value value : values) {
+                add(metric, value);
+            }
+            return;
+        }
+        TimeSeries timeSeries = getTimeSeries(metric);
+        int iteration = 0;
+        for (Value value : values) {
+            Deadline.check(iteration++);
+            timeSeries.add(value);
+        }
+    }
+
+    private Aggregation copy() {
+        Aggregation aggregation = new Aggregation();
+        aggregation.type = type;
+        aggregation.types = types;
+        aggregation.groupBy = groupBy;
+        aggregation.step = step;
+        aggregation.stepAsMillis = stepAsMillis;
+        return aggregation;
+    }
+
+    private Collection<Matrix> close(long watermark) {
+        long bucket = Math.floorDiv(watermark, stepAsMillis);
+        if (bucket <= closedBucket) return Collections.emptyList();
+        closedBucket = bucket;
+        return closeBefore(bucket);
+    }
+
+    private Collection<Matrix> closeBefore(long bucket) {
+        Collection<Matrix> matrixes = new ArrayList<>();
+        Iterator<TimeSeries> iterator = timeSeries.values().iterator();
+        while (iterator.hasNext()) {
+            TimeSeries series = iterator.next();
+            series.closeBefore(bucket, matrixes);
+            if (series.buckets.isEmpty()) {
+                iterator.remove();
+                groups.clear();
+            }
+        }
+        return matrixes;
+    }
+
+    private void fireClosed(Collection<Matrix> matrixes) {
+        if (!matrixes.isEmpty()) listener.onClosed(matrixes);
+    }
+
+    private void checkStreaming() {
+        if (listener == null) throw new IllegalStateException("The aggregation is not in streaming mode");
     }
 
     private void checkStarted() {
@@ -121,18 +450,47 @@ public class Aggregation {
     }
 
     private TimeSeries getTimeSeries(Metric metric) {
-        return this.timeSeries.computeIfAbsent(metric.getHash(), s -> new TimeSeries(metric));
+        if (groupBy.isEmpty()) {
+            return this.timeSeries.computeIfAbsent(metric.getHash(), key -> new TimeSeries(key, metric));
+        }
+        TimeSeries series = groups.get(metric.getHash());
+        if (series == null) {
+            Map<String, String> labels = new HashMap<>();
+            for (String label : groupBy) {
+                String value = metric.getLabel(label);
+                if (value != null) labels.put(label, value);
+            }
+            Metric groupMetric = Metric.create(Metric.UNNAMED, labels);
+            series = this.timeSeries.computeIfAbsent(groupMetric.getHash(), key -> new TimeSeries(key, groupMetric));
+            groups.put(metric.getHash(), series);
+        }
+        return series;
     }
 
     @Override
     public String toString() {
         return new StringJoiner(", ", Aggregation.class.getSimpleName() + "[", "]")
-                .add("type=" + type)
+                .add("types=" + types)
                 .add("step=" + step)
+                .add("groupBy=" + groupBy)
+                .add("allowedLateness=" + allowedLateness)
                 .add("timeSeries=" + timeSeries)
                 .toString();
     }
 
+    /**
+     * A listener which receives the closed buckets of a streaming aggregation.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when buckets are closed.
+         *
+         * @param matrixes the values of the closed buckets, one matrix per metric (and statistic)
+         */
+        void onClosed(Collection<Matrix> matrixes);
+    }
+
     /**
      * An enum for the aggregation type
      */
@@ -156,70 +514,210 @@ public class Aggregation {
         /**
          * The average value is calculated
          */
-        AVG
+        AVG,
+
+        /**
+         * The number of values is retained.
+         */
+        COUNT,
+
+        /**
+         * The first (oldest) value is retained.
+         */
+        FIRST,
+
+        /**
+         * The last (most recent) value is retained.
+         */
+        LAST,
+
+        /**
+         * The median (approximated) is calculated.
+         */
+        P50(0.5),
+
+        /**
+         * The 90th percentile (approximated) is calculated.
+         */
+        P90(0.9),
+
+        /**
+         * The 95th percentile (approximated) is calculated.
+         */
+        P95(0.95),
+
+        /**
+         * The 99th percentile (approximated) is calculated.
+         */
+        P99(0.99);
+
+        private final double quantile;
+
+        Type() {
+            this(Double.NaN);
+        }
+
+        Type(double quantile) {
+            this.quantile = quantile;
+        }
+
+        /**
+         * Returns whether the aggregation calculates a quantile.
+         * <p>
+         * Quantiles are calculated with a {@link Sketch sketch} per bucket, with a relative error of 1%.
+         *
+         * @return {@code true} if a quantile, {@code false} otherwise
+         */
+        public boolean isQuantile() {
+            return !Double.isNaN(quantile);
+        }
+
+        /**
+         * Returns the quantile calculated by this aggregation.
+         *
+         * @return the quantile (between 0 and 1), {@link Double#NaN} if not a quantile
+         */
+        public double getQuantile() {
+            return quantile;
+        }
     }
 
-    private class TimeSeries {
+    private static class Chunk {
 
         private final Metric metric;
-        private final Map<Long, Value> values = new HashMap<>();
-        private final Map<Long, Integer> counts = new HashMap<>();
+        private final List<Value> values;
 
-        public TimeSeries(Metric metric) {
+        private Chunk(Metric metric, List<Value> values) {
             this.metric = metric;
+            this.values = values;
         }
+    }
 
-        private void add(Value value) {
-            long timestamp = (value.getTimestamp() / stepAsMillis) * stepAsMillis;
-            value = Value.create(timestamp, value.getValue());
-            if (type == Type.AVG) {
-                counts.merge(timestamp, 1, Integer::sum);
+    private class AggregateTask extends RecursiveTask<Aggregation> {
+
+        private final List<List<Chunk>> tasks;
+        private final Deadline deadline = Deadline.current();
+
+        private AggregateTask(List<List<Chunk>> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected Aggregation compute() {
+            try (Deadline ignored = Deadline.inherit(deadline)) {
+                return aggregate();
             }
-            values.merge(timestamp, value, (oldValue, newValue) -> {
-                switch (type) {
-                    case MIN:
-                        return oldValue.getValue() > newValue.getValue() ? newValue : oldValue;
-                    case MAX:
-                        return oldValue.getValue() < newValue.getValue() ? newValue : oldValue;
-                    case SUM:
-                    case AVG:
-                        return oldValue.add(newValue.getValue());
-                    default:
-                        throw new IllegalStateException("Unhandled type: " + type);
+        }
+
+        private Aggregation aggregate() {
+            if (tasks.size() == 1) {
+                Aggregation aggregation = copy();
+                int iteration = 0;
+                for (Chunk chunk : tasks.get(0)) {
+                    TimeSeries timeSeries = aggregation.getTimeSeries(chunk.metric);
+                    for (Value value : chunk.values) {
+                        Deadline.check(iteration++);
+                        timeSeries.add(value);
+                    }
                 }
-            });
+                return aggregation;
+            } else {
+                int middle = tasks.size() / 2;
+                AggregateTask left = new AggregateTask(tasks.subList(0, middle));
+                AggregateTask right = new AggregateTask(tasks.subList(middle, tasks.size()));
+                right.fork();
+                Aggregation aggregation = left.aggregate();
+                aggregation.merge(right.join());
+                return aggregation;
+            }
+        }
+    }
+
+    private class TimeSeries {
+
+        private final String key;
+        private final Metric metric;
+        private final BucketMap buckets = new BucketMap(types.stream().anyMatch(Type::isQuantile));
+
+        public TimeSeries(String key, Metric metric) {
+            this.key = key;
+            this.metric = metric;
+        }
+
+        private void add(Value value) {
+            add(value.getTimestamp(), value.getValue());
+        }
+
+        private void add(long timestamp, double value) {
+            buckets.add(buckets.slot(timestamp / stepAsMillis), timestamp, value);
         }
 
         private void merge(TimeSeries timeSeries) {
-            if (!metric.equals(timeSeries.metric))
+            if (!key.equals(timeSeries.key))
                 throw new MetricException("Cannot merge two time-series with different metrics, " +
                                           ", source: " + timeSeries.metric + ", target: " + metric);
-            for (Value value : timeSeries.values.values()) {
-                add(value);
+            buckets.merge(timeSeries.buckets);
+        }
+
+        private double getValue(int slot, Type type) {
+            switch (type) {
+                case SUM:
+                    return buckets.getSum(slot);
+                case MIN:
+                    return buckets.getMinimum(slot);
+                case MAX:
+                    return buckets.getMaximum(slot);
+                case AVG:
+                    return buckets.getAverage(slot);
+                case COUNT:
+                    return buckets.getCount(slot);
+                case FIRST:
+                    return buckets.getFirst(slot);
+                case LAST:
+                    return buckets.getLast(slot);
+                case P50:
+                case P90:
+                case P95:
+                case P99:
+                    return buckets.getQuantile(slot, type.getQuantile());
+                default:
+                    throw new IllegalStateException("Unhandled type: " + type);
             }
         }
 
-        private Value change(Value value) {
-            if (type == Type.AVG) {
-                Integer count = counts.get(value.getTimestamp());
-                return Value.create(value.getTimestamp(), value.getValue() / count);
-            } else {
-                return value;
+        private void closeBefore(long bucket, Collection<Matrix> matrixes) {
+            int[] slots = buckets.sortedSlots();
+            int count = 0;
+            while (count < slots.length && buckets.getKey(slots[count]) < bucket) count++;
+            if (count == 0) return;
+            for (Type statistic : types) {
+                matrixes.add(toMatrix(statistic, types.size() > 1, slots, count));
             }
+            buckets.removeBefore(bucket);
         }
 
-        private Matrix toMatrix() {
-            Iterator<Value> iterator = values.values().stream().sorted(Comparator.comparing(Value::getTimestamp))
-                    .map(this::change).iterator();
-            return Matrix.create(metric, iterator);
+        private Matrix toMatrix(Type type, boolean labeled) {
+            int[] slots = buckets.sortedSlots();
+            return toMatrix(type, labeled, slots, slots.length);
+        }
+
+        private Matrix toMatrix(Type type, boolean labeled, int[] slots, int count) {
+            long[] timestamps = new long[count];
+            float[] values = new float[count];
+            for (int index = 0; index < count; index++) {
+                int slot = slots[index];
+                timestamps[index] = buckets.getKey(slot) * stepAsMillis;
+                values[index] = (float) getValue(slot, type);
+            }
+            Metric matrixMetric = labeled ? metric.withLabel(STATISTIC_LABEL, type.name().toLowerCase()) : metric;
+            return Matrix.create(matrixMetric, timestamps, values, count);
         }
 
         @Override
         public String toString() {
             return new StringJoiner(", ", TimeSeries.class.getSimpleName() + "[", "]")
                     .add("metric=" + metric)
-                    .add("values=" + values.size())
-                    .add("counts=" + counts.size())
+                    .add("buckets=" + buckets.size())
                     .toString();
         }
     }
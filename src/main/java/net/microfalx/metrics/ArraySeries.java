@@ -0,0 +1,225 @@
+package net.microfalx.metrics;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalDouble;
+
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * An immutable series backed by primitive arrays (timestamps and values), sorted by timestamp.
+ * <p>
+ * The arrays can be shared with other instances (for example a {@link Matrix}), so the series is never modified;
+ * operations which change the series return a new instance.
+ */
+@SuppressWarnings({"OptionalUsedAsFieldOrParameterType", "OptionalAssignedToNull"})
+final class ArraySeries extends AbstractSeries {
+
+    static final int OVERHEAD_SIZE = 96;
+    static final int VALUE_SIZE = 8 + 4;
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int offset;
+    private final int count;
+
+    private volatile OptionalDouble average;
+    private volatile OptionalDouble minimum;
+    private volatile OptionalDouble maximum;
+
+    /**
+     * Creates a series with a copy of a list of values.
+     *
+     * @param name   the name of the series
+     * @param values the values, sorted by timestamp
+     * @return a non-null instance
+     */
+    static ArraySeries create(String name, List<Value> values) {
+        requireNonNull(values);
+        long[] timestamps = new long[values.size()];
+        float[] floats = new float[values.size()];
+        int index = 0;
+        for (Value value : values) {
+            timestamps[index] = value.getTimestamp();
+            floats[index++] = value.getValue();
+        }
+        return new ArraySeries(name, timestamps, floats, 0, index);
+    }
+
+    ArraySeries(String name, long[] timestamps, float[] values, int offset, int count) {
+        super(name);
+        requireNonNull(timestamps);
+        requireNonNull(values);
+        if (offset < 0 || count < 0 || offset + count > timestamps.length || offset + count > values.length) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", count " + count);
+        }
+        this.timestamps = timestamps;
+        this.values = values;
+        this.offset = offset;
+        this.count = count;
+    }
+
+    long[] getTimestampArray() {
+        return timestamps;
+    }
+
+    float[] getValueArray() {
+        return values;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public List<Value> getValues() {
+        return new ListWrapper();
+    }
+
+    @Override
+    public Value get(int index) {
+        requireBounded(index, 0, count - 1);
+        return Value.create(timestamps[offset + index], values[offset + index]);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public Optional<Value> getFirst() {
+        return isEmpty() ? Optional.empty() : Optional.of(get(0));
+    }
+
+    @Override
+    public Optional<Value> getLast() {
+        return isEmpty() ? Optional.empty() : Optional.of(get(count - 1));
+    }
+
+    @Override
+    public OptionalDouble getAverage() {
+        if (average == null) calculate();
+        return average;
+    }
+
+    @Override
+    public OptionalDouble getMinimum() {
+        if (minimum == null) calculate();
+        return minimum;
+    }
+
+    @Override
+    public OptionalDouble getMaximum() {
+        if (maximum == null) calculate();
+        return maximum;
+    }
+
+    @Override
+    public double getWeight() {
+        return getMaximum().orElse(0) / count;
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return OVERHEAD_SIZE + (long) count * VALUE_SIZE;
+    }
+
+    @Override
+    public Series add(Value value) {
+        requireNonNull(value);
+        int position = count;
+        while (position > 0 && timestamps[offset + position - 1] > value.getTimestamp()) position--;
+        long[] newTimestamps = new long[count + 1];
+        float[] newValues = new float[count + 1];
+        System.arraycopy(timestamps, offset, newTimestamps, 0, position);
+        System.arraycopy(values, offset, newValues, 0, position);
+        newTimestamps[position] = value.getTimestamp();
+        newValues[position] = value.getValue();
+        System.arraycopy(timestamps, offset + position, newTimestamps, position + 1, count - position);
+        System.arraycopy(values, offset + position, newValues, position + 1, count - position);
+        return new ArraySeries(getName(), newTimestamps, newValues, 0, count + 1).setRetention(getRetention());
+    }
+
+    @Override
+    Series addAll(List<Value> values) {
+        requireNonNull(values);
+        if (values.isEmpty()) return this;
+        if (!MetricUtils.isSorted(values)) {
+            values = new ArrayList<>(values);
+            values.sort(Comparator.comparing(Value::getTimestamp));
+        }
+        int newCount = count + values.size();
+        long[] newTimestamps = new long[newCount];
+        float[] newValues = new float[newCount];
+        int index = offset;
+        int end = offset + count;
+        int position = 0;
+        for (Value value : values) {
+            while (index < end && timestamps[index] <= value.getTimestamp()) {
+                newTimestamps[position] = timestamps[index];
+                newValues[position++] = this.values[index++];
+            }
+            newTimestamps[position] = value.getTimestamp();
+            newValues[position++] = value.getValue();
+        }
+        System.arraycopy(timestamps, index, newTimestamps, position, end - index);
+        System.arraycopy(this.values, index, newValues, position, end - index);
+        return new ArraySeries(getName(), newTimestamps, newValues, 0, newCount).setRetention(getRetention());
+    }
+
+    @Override
+    public Series compact() {
+        return new CompactSeries(getName(), CompactSeries.compact(getValues())).setRetention(getRetention());
+    }
+
+    @Override
+    Series trim(int count) {
+        int trimmed = Math.min(count, this.count);
+        return new ArraySeries(getName(), timestamps, values, offset + trimmed, this.count - trimmed)
+                .setRetention(getRetention());
+    }
+
+    private void calculate() {
+        if (count == 0) {
+            average = OptionalDouble.empty();
+            minimum = OptionalDouble.empty();
+            maximum = OptionalDouble.empty();
+            return;
+        }
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int index = offset; index < offset + count; index++) {
+            double value = values[index];
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        average = OptionalDouble.of(sum / count);
+        minimum = OptionalDouble.of(min);
+        maximum = OptionalDouble.of(max);
+    }
+
+    class ListWrapper extends AbstractList<Value> {
+
+        @Override
+        public Value get(int index) {
+            return ArraySeries.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
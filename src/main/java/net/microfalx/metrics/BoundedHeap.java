@@ -0,0 +1,144 @@
+package net.microfalx.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.StringJoiner;
+
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
+
+/**
+ * Keeps the items with the highest scores out of a stream of items.
+ * <p>
+ * The items are kept in a min-heap bounded to the number of requested items, so selecting the top K items out
+ * of N costs {@code O(N log K)} time and {@code O(K)} memory. Items with equal scores are ranked in the order they
+ * were added (earlier items win).
+ *
+ * @param <T> the type of items
+ */
+final class BoundedHeap<T> {
+
+    private static final Comparator<Entry<?>> WEAKEST_FIRST = Comparator.<Entry<?>>comparingDouble(entry -> entry.score)
+            .thenComparing(Comparator.<Entry<?>>comparingLong(entry -> entry.sequence).reversed());
+
+    private final int capacity;
+    private final PriorityQueue<Entry<T>> heap;
+    private long sequence;
+
+    /**
+     * Creates a heap.
+     *
+     * @param capacity the maximum number of items kept
+     */
+    BoundedHeap(int capacity) {
+        requireBounded(capacity, 1, Integer.MAX_VALUE);
+        this.capacity = capacity;
+        this.heap = new PriorityQueue<>(Math.min(capacity, 1024) + 1, WEAKEST_FIRST);
+    }
+
+    /**
+     * Returns the maximum number of items kept.
+     *
+     * @return a positive integer
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of items kept.
+     *
+     * @return a positive integer
+     */
+    int size() {
+        return heap.size();
+    }
+
+    /**
+     * Returns whether an item with a given score would be kept.
+     * <p>
+     * Used to skip the (expensive) creation of items which cannot make it into the heap.
+     *
+     * @param score the score
+     * @return {@code true} if the item would be kept, {@code false} otherwise
+     */
+    boolean accepts(double score) {
+        if (Double.isNaN(score)) return false;
+        Entry<T> weakest = heap.peek();
+        return heap.size() < capacity || weakest == null || score > weakest.score;
+    }
+
+    /**
+     * Adds an item, evicting the item with the lowest score if the heap is full.
+     *
+     * @param item  the item
+     * @param score the score of the item, {@link Double#NaN} items are ignored
+     * @return {@code true} if the item was kept, {@code false} otherwise
+     */
+    boolean add(T item, double score) {
+        if (!accepts(score)) return false;
+        if (heap.size() == capacity) heap.poll();
+        heap.offer(new Entry<>(item, score, sequence++));
+        return true;
+    }
+
+    /**
+     * Returns the items kept, ranked by score (highest first).
+     *
+     * @return a non-null instance
+     */
+    List<T> toList() {
+        List<Entry<T>> entries = getEntries();
+        List<T> items = new ArrayList<>(entries.size());
+        for (Entry<T> entry : entries) {
+            items.add(entry.item);
+        }
+        return items;
+    }
+
+    /**
+     * Returns the items kept and their scores, ranked by score (highest first).
+     *
+     * @return a non-null instance
+     */
+    List<Entry<T>> getEntries() {
+        List<Entry<T>> entries = new ArrayList<>(heap);
+        entries.sort(WEAKEST_FIRST.reversed());
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", BoundedHeap.class.getSimpleName() + "[", "]")
+                .add("capacity=" + capacity)
+                .add("size=" + heap.size())
+                .toString();
+    }
+
+    /**
+     * An item and its score.
+     *
+     * @param <T> the type of item
+     */
+    static final class Entry<T> {
+
+        private final T item;
+        private final double score;
+        private final long sequence;
+
+        private Entry(T item, double score, long sequence) {
+            this.item = item;
+            this.score = score;
+            this.sequence = sequence;
+        }
+
+        T getItem() {
+            return item;
+        }
+
+        double getScore() {
+            return score;
+        }
+    }
+}
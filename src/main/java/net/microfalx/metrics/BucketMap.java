@@ -0,0 +1,365 @@
+package net.microfalx.metrics;
+
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * An open-addressing map from a (bucket) key to the partial aggregation state of the bucket: the sum,
+ * minimum, maximum, first, last and number of values which were accumulated in the bucket.
+ * <p>
+ * Keys and states are kept in primitive arrays (linear probing), so adding values does not allocate.
+ * A bucket is considered free when its count is zero.
+ * <p>
+ * The partial states merge associatively, so buckets can be accumulated independently (per thread or
+ * per node) and combined afterwards.
+ * <p>
+ * Optionally, each bucket also keeps a {@link Sketch} to answer quantiles.
+ * <p>
+ * The map is not thread-safe.
+ */
+final class BucketMap {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private double[] sums;
+    private double[] minimums;
+    private double[] maximums;
+    private long[] firstTimestamps;
+    private double[] firsts;
+    private long[] lastTimestamps;
+    private double[] lasts;
+    private Sketch[] sketches;
+    private int[] counts;
+    private int size;
+    private int mask;
+    private final boolean quantiles;
+
+    BucketMap() {
+        this(false);
+    }
+
+    BucketMap(boolean quantiles) {
+        this.quantiles = quantiles;
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private BucketMap(long[] keys, double[] sums, double[] minimums, double[] maximums, long[] firstTimestamps,
+                      double[] firsts, long[] lastTimestamps, double[] lasts, Sketch[] sketches, int[] counts) {
+        this.quantiles = sketches != null;
+        this.keys = keys;
+        this.sums = sums;
+        this.minimums = minimums;
+        this.maximums = maximums;
+        this.firstTimestamps = firstTimestamps;
+        this.firsts = firsts;
+        this.lastTimestamps = lastTimestamps;
+        this.lasts = lasts;
+        this.sketches = sketches;
+        this.counts = counts;
+    }
+
+    /**
+     * Returns the number of buckets.
+     *
+     * @return a positive integer
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether the map has no buckets.
+     *
+     * @return {@code true} if empty, {@code false} otherwise
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the slot of a bucket, creating the bucket (with a count of zero) if it does not exist.
+     * <p>
+     * The slot is valid until the next bucket is created.
+     *
+     * @param key the key of the bucket
+     * @return the slot
+     */
+    int slot(long key) {
+        int slot = find(key);
+        if (counts[slot] != 0) return slot;
+        if (size + 1 > (mask + 1) >> 1) {
+            allocate((mask + 1) << 1);
+            slot = find(key);
+        }
+        keys[slot] = key;
+        return slot;
+    }
+
+    /**
+     * Returns the key of a bucket.
+     *
+     * @param slot the slot
+     * @return the key
+     */
+    long getKey(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the sum of the values accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the sum
+     */
+    double getSum(int slot) {
+        return sums[slot];
+    }
+
+    /**
+     * Returns the minimum of the values accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the minimum
+     */
+    double getMinimum(int slot) {
+        return minimums[slot];
+    }
+
+    /**
+     * Returns the maximum of the values accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the maximum
+     */
+    double getMaximum(int slot) {
+        return maximums[slot];
+    }
+
+    /**
+     * Returns the first (oldest) value accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the value
+     */
+    double getFirst(int slot) {
+        return firsts[slot];
+    }
+
+    /**
+     * Returns the last (most recent) value accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the value
+     */
+    double getLast(int slot) {
+        return lasts[slot];
+    }
+
+    /**
+     * Returns the (approximated) value at a given quantile for the values accumulated in a bucket.
+     *
+     * @param slot     the slot
+     * @param quantile the quantile, between 0 and 1
+     * @return the value
+     * @throws IllegalStateException if the map does not keep quantiles
+     */
+    double getQuantile(int slot, double quantile) {
+        if (!quantiles) throw new IllegalStateException("Quantiles are not tracked");
+        return sketches[slot].getQuantile(quantile);
+    }
+
+    /**
+     * Returns the average of the values accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return the average
+     */
+    double getAverage(int slot) {
+        return sums[slot] / counts[slot];
+    }
+
+    /**
+     * Returns the number of values accumulated in a bucket.
+     *
+     * @param slot the slot
+     * @return a positive integer, zero if the slot is free
+     */
+    int getCount(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * Accumulates a value in a bucket.
+     *
+     * @param slot      the slot
+     * @param timestamp the timestamp of the value
+     * @param value     the value
+     */
+    void add(int slot, long timestamp, double value) {
+        if (counts[slot] == 0) {
+            size++;
+            sums[slot] = value;
+            minimums[slot] = value;
+            maximums[slot] = value;
+            firstTimestamps[slot] = timestamp;
+            firsts[slot] = value;
+            lastTimestamps[slot] = timestamp;
+            lasts[slot] = value;
+            if (quantiles) sketches[slot] = new Sketch();
+        } else {
+            sums[slot] += value;
+            minimums[slot] = Math.min(minimums[slot], value);
+            maximums[slot] = Math.max(maximums[slot], value);
+            if (timestamp < firstTimestamps[slot]) {
+                firstTimestamps[slot] = timestamp;
+                firsts[slot] = value;
+            }
+            if (timestamp >= lastTimestamps[slot]) {
+                lastTimestamps[slot] = timestamp;
+                lasts[slot] = value;
+            }
+        }
+        if (quantiles) sketches[slot].add(value);
+        counts[slot]++;
+    }
+
+    /**
+     * Merges all buckets of another map into this map.
+     *
+     * @param buckets the other map
+     */
+    void merge(BucketMap buckets) {
+        for (int otherSlot = 0; otherSlot < buckets.counts.length; otherSlot++) {
+            if (buckets.counts[otherSlot] == 0) continue;
+            int slot = slot(buckets.keys[otherSlot]);
+            if (counts[slot] == 0) {
+                size++;
+                copy(buckets, otherSlot, this, slot);
+                if (quantiles) {
+                    sketches[slot] = new Sketch();
+                    if (buckets.quantiles) sketches[slot].merge(buckets.sketches[otherSlot]);
+                }
+                continue;
+            }
+            sums[slot] += buckets.sums[otherSlot];
+            minimums[slot] = Math.min(minimums[slot], buckets.minimums[otherSlot]);
+            maximums[slot] = Math.max(maximums[slot], buckets.maximums[otherSlot]);
+            if (buckets.firstTimestamps[otherSlot] < firstTimestamps[slot]) {
+                firstTimestamps[slot] = buckets.firstTimestamps[otherSlot];
+                firsts[slot] = buckets.firsts[otherSlot];
+            }
+            if (buckets.lastTimestamps[otherSlot] >= lastTimestamps[slot]) {
+                lastTimestamps[slot] = buckets.lastTimestamps[otherSlot];
+                lasts[slot] = buckets.lasts[otherSlot];
+            }
+            if (quantiles && buckets.quantiles) sketches[slot].merge(buckets.sketches[otherSlot]);
+            counts[slot] += buckets.counts[otherSlot];
+        }
+    }
+
+    /**
+     * Removes all buckets with a key smaller than a given key.
+     * <p>
+     * The map shrinks to fit the remaining buckets.
+     *
+     * @param key the smallest key to keep
+     */
+    void removeBefore(long key) {
+        int remaining = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0 && keys[slot] >= key) remaining++;
+        }
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < 2 * remaining) capacity <<= 1;
+        allocate(capacity, key);
+    }
+
+    /**
+     * Returns the slots of all buckets, sorted by key.
+     *
+     * @return a non-null instance
+     */
+    int[] sortedSlots() {
+        long[] sortedKeys = new long[size];
+        int index = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) sortedKeys[index++] = keys[slot];
+        }
+        Arrays.sort(sortedKeys);
+        int[] slots = new int[size];
+        for (index = 0; index < sortedKeys.length; index++) {
+            slots[index] = find(sortedKeys[index]);
+        }
+        return slots;
+    }
+
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (counts[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        allocate(capacity, Long.MIN_VALUE);
+    }
+
+    private void allocate(int capacity, long minimumKey) {
+        BucketMap old = keys != null ? copy() : null;
+        keys = new long[capacity];
+        sums = new double[capacity];
+        minimums = new double[capacity];
+        maximums = new double[capacity];
+        firstTimestamps = new long[capacity];
+        firsts = new double[capacity];
+        lastTimestamps = new long[capacity];
+        lasts = new double[capacity];
+        sketches = quantiles ? new Sketch[capacity] : null;
+        counts = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        if (old == null) return;
+        for (int oldSlot = 0; oldSlot < old.counts.length; oldSlot++) {
+            if (old.counts[oldSlot] == 0 || old.keys[oldSlot] < minimumKey) continue;
+            size++;
+            int slot = find(old.keys[oldSlot]);
+            keys[slot] = old.keys[oldSlot];
+            copy(old, oldSlot, this, slot);
+            if (quantiles) sketches[slot] = old.sketches[oldSlot];
+        }
+    }
+
+    private BucketMap copy() {
+        BucketMap copy = new BucketMap(keys, sums, minimums, maximums, firstTimestamps, firsts, lastTimestamps, lasts,
+                sketches, counts);
+        copy.size = size;
+        copy.mask = mask;
+        return copy;
+    }
+
+    private static void copy(BucketMap source, int sourceSlot, BucketMap target, int targetSlot) {
+        target.sums[targetSlot] = source.sums[sourceSlot];
+        target.minimums[targetSlot] = source.minimums[sourceSlot];
+        target.maximums[targetSlot] = source.maximums[sourceSlot];
+        target.firstTimestamps[targetSlot] = source.firstTimestamps[sourceSlot];
+        target.firsts[targetSlot] = source.firsts[sourceSlot];
+        target.lastTimestamps[targetSlot] = source.lastTimestamps[sourceSlot];
+        target.lasts[targetSlot] = source.lasts[sourceSlot];
+        target.counts[targetSlot] = source.counts[sourceSlot];
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", BucketMap.class.getSimpleName() + "[", "]")
+                .add("size=" + size)
+                .add("capacity=" + counts.length)
+                .toString();
+    }
+}
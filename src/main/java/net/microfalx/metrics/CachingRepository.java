@@ -0,0 +1,299 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A repository which caches the results of another repository.
+ * <p>
+ * Results are cached by query type, text and step. The query interval is aligned to the step, and only the
+ * steps which are complete (before the aligned end of the query, and before {@code now}) are cached. When the
+ * same query is executed again with a sliding interval (a dashboard refresh), only the steps after the cached
+ * ones are requested from the underlying repository. The cached steps before the new start are evicted, so the
+ * cost of a refresh is proportional to the new data, not to the size of the interval.
+ * <p>
+ * Values which arrive late (after a step was cached) are not visible until the entry is evicted or the cache is
+ * {@link #clear() cleared}. Only successful {@link Result.Type#MATRIX matrix} results are cached; anything else
+ * is returned as is. The least recently used entries are evicted when the cache is full.
+ */
+public final class CachingRepository implements Repository {
+
+    private static final int DEFAULT_MAXIMUM_SIZE = 100;
+
+    private final Repository repository;
+    private final int maximumSize;
+    private final Map<Key, Fragment> fragments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a caching repository.
+     *
+     * @param repository the repository to cache
+     * @return a non-null instance
+     */
+    public static CachingRepository create(Repository repository) {
+        return create(repository, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a caching repository.
+     *
+     * @param repository  the repository to cache
+     * @param maximumSize the maximum number of queries to cache
+     * @return a non-null instance
+     */
+    public static CachingRepository create(Repository repository, int maximumSize) {
+        return new CachingRepository(repository, maximumSize);
+    }
+
+    private CachingRepository(Repository repository, int maximumSize) {
+        requireNonNull(repository);
+        requireBounded(maximumSize, 1, Integer.MAX_VALUE);
+        this.repository = repository;
+        this.maximumSize = maximumSize;
+        this.fragments = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Fragment> eldest) {
+                return size() > CachingRepository.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the repository which is cached.
+     *
+     * @return a non-null instance
+     */
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the maximum number of queries cached.
+     *
+     * @return a positive integer
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns the number of queries cached.
+     *
+     * @return a positive integer
+     */
+    public int getSize() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * Returns the number of queries which were (at least partially) answered from the cache.
+     *
+     * @return a positive integer
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of queries which were fully executed by the cached repository.
+     *
+     * @return a positive integer
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public void clear() {
+        synchronized (fragments) {
+            fragments.clear();
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return repository.isAvailable();
+    }
+
+    @Override
+    public boolean supports(Query query) {
+        return repository.supports(query);
+    }
+
+    @Override
+    public String getLastError() {
+        return repository.getLastError();
+    }
+
+    @Override
+    public Result query(Query query) {
+        requireNonNull(query);
+        Duration stepDuration = MetricUtils.getStep(query);
+        long step = stepDuration.toMillis();
+        if (step <= 0) return repository.query(query);
+        ZonedDateTime startTime = query.getStartTime();
+        ZonedDateTime endTime = query.getEndTime();
+        long start = Math.floorDiv(startTime.toInstant().toEpochMilli(), step) * step;
+        long end = endTime.toInstant().toEpochMilli();
+        long completed = Math.floorDiv(Math.min(end, System.currentTimeMillis()), step) * step;
+        Query alignedQuery = query.withStartTime(toDateTime(startTime, start)).withEnd(endTime).withStep(stepDuration);
+        Key key = new Key(query, step);
+        Fragment fragment;
+        synchronized (fragments) {
+            fragment = fragments.get(key);
+        }
+        if (fragment == null || start < fragment.start || start > fragment.end || fragment.end > end) {
+            missCount.incrementAndGet();
+            Result result = repository.query(alignedQuery);
+            if (isCacheable(result)) store(key, new Fragment(start, completed, result.getMatrixes()));
+            return result;
+        }
+        hitCount.incrementAndGet();
+        Result tail = repository.query(alignedQuery.withStartTime(toDateTime(startTime, fragment.end)));
+        if (!isCacheable(tail)) return tail;
+        Fragment extended = fragment.extend(start, completed, tail.getMatrixes());
+        store(key, extended);
+        return Result.matrix(alignedQuery, extended.toMatrixes(start, end, tail.getMatrixes()));
+    }
+
+    private void store(Key key, Fragment fragment) {
+        synchronized (fragments) {
+            fragments.put(key, fragment);
+        }
+    }
+
+    private static boolean isCacheable(Result result) {
+        return result.isSuccessful() && result.getType() == Result.Type.MATRIX;
+    }
+
+    private static ZonedDateTime toDateTime(ZonedDateTime reference, long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(reference.getZone());
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", CachingRepository.class.getSimpleName() + "[", "]")
+                .add("repository=" + repository)
+                .add("maximumSize=" + maximumSize)
+                .add("size=" + getSize())
+                .add("hitCount=" + hitCount)
+                .add("missCount=" + missCount)
+                .toString();
+    }
+
+    /**
+     * The key of a cached query.
+     */
+    private static final class Key {
+
+        private final String type;
+        private final String text;
+        private final long step;
+
+        private Key(Query query, long step) {
+            this.type = query.getType().toLowerCase();
+            this.text = query.getText();
+            this.step = step;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return step == key.step && type.equals(key.type) && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, text, step);
+        }
+    }
+
+    /**
+     * The cached (complete) steps of a query, between a start (inclusive) and an end (exclusive).
+     * <p>
+     * A fragment is immutable; extending it creates a new fragment.
+     */
+    private static final class Fragment {
+
+        private final long start;
+        private final long end;
+        private final Map<Metric, List<Value>> values;
+
+        private Fragment(long start, long end, Collection<Matrix> matrixes) {
+            this(start, end, new LinkedHashMap<>());
+            for (Matrix matrix : matrixes) {
+                values.put(matrix.getMetric(), new ArrayList<>(select(matrix.getValues(), start, end)));
+            }
+        }
+
+        private Fragment(long start, long end, Map<Metric, List<Value>> values) {
+            this.start = start;
+            this.end = end;
+            this.values = values;
+        }
+
+        private Fragment extend(long newStart, long newEnd, Collection<Matrix> tail) {
+            Map<Metric, List<Value>> newValues = new LinkedHashMap<>();
+            for (Map.Entry<Metric, List<Value>> entry : values.entrySet()) {
+                List<Value> selected = select(entry.getValue(), newStart, end);
+                if (!selected.isEmpty()) newValues.put(entry.getKey(), new ArrayList<>(selected));
+            }
+            for (Matrix matrix : tail) {
+                List<Value> selected = select(matrix.getValues(), end, newEnd);
+                if (selected.isEmpty()) continue;
+                newValues.computeIfAbsent(matrix.getMetric(), metric -> new ArrayList<>()).addAll(selected);
+            }
+            return new Fragment(newStart, Math.max(end, newEnd), newValues);
+        }
+
+        private Collection<Matrix> toMatrixes(long start, long end, Collection<Matrix> tail) {
+            Map<Metric, List<Value>> result = new LinkedHashMap<>();
+            for (Map.Entry<Metric, List<Value>> entry : values.entrySet()) {
+                result.put(entry.getKey(), new ArrayList<>(select(entry.getValue(), start, end)));
+            }
+            for (Matrix matrix : tail) {
+                List<Value> selected = select(matrix.getValues(), this.end, end + 1);
+                if (selected.isEmpty()) continue;
+                result.computeIfAbsent(matrix.getMetric(), metric -> new ArrayList<>()).addAll(selected);
+            }
+            Collection<Matrix> matrixes = new ArrayList<>(result.size());
+            for (Map.Entry<Metric, List<Value>> entry : result.entrySet()) {
+                if (!entry.getValue().isEmpty()) matrixes.add(Matrix.create(entry.getKey(), entry.getValue()));
+            }
+            return matrixes;
+        }
+
+        private static List<Value> select(List<Value> values, long start, long end) {
+            return values.subList(indexOf(values, start), indexOf(values, end));
+        }
+
+        private static int indexOf(List<Value> values, long timestamp) {
+            int low = 0;
+            int high = values.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values.get(middle).getTimestamp() < timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
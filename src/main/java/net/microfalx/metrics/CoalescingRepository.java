@@ -0,0 +1,127 @@
+package net.microfalx.metrics;
+
+import java.util.StringJoiner;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A repository which coalesces concurrent identical queries (single-flight).
+ * <p>
+ * When a query is executed while an {@link Query#equals(Object) equal} query is in flight, the caller does not
+ * execute the query again; it waits for the in-flight execution and receives the same result. Each caller waits
+ * at most the {@link Query#getTimeOut() timeout} of its query; a caller which times out receives a failed result,
+ * while the in-flight execution continues for the other callers.
+ * <p>
+ * Results are not cached: once the in-flight execution completes, the next query is executed again.
+ */
+public final class CoalescingRepository implements Repository {
+
+    private final Repository repository;
+    private final ConcurrentMap<Query, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executionCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Creates a coalescing repository.
+     *
+     * @param repository the repository which executes the queries
+     * @return a non-null instance
+     */
+    public static CoalescingRepository create(Repository repository) {
+        return new CoalescingRepository(repository);
+    }
+
+    private CoalescingRepository(Repository repository) {
+        requireNonNull(repository);
+        this.repository = repository;
+    }
+
+    /**
+     * Returns the repository which executes the queries.
+     *
+     * @return a non-null instance
+     */
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the number of queries executed by the underlying repository.
+     *
+     * @return a positive integer
+     */
+    public long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    /**
+     * Returns the number of queries which were answered by an in-flight execution.
+     *
+     * @return a positive integer
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return repository.isAvailable();
+    }
+
+    @Override
+    public boolean supports(Query query) {
+        return repository.supports(query);
+    }
+
+    @Override
+    public String getLastError() {
+        return repository.getLastError();
+    }
+
+    @Override
+    public Result query(Query query) {
+        requireNonNull(query);
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> existingFuture = inFlight.putIfAbsent(query, future);
+        if (existingFuture == null) {
+            executionCount.incrementAndGet();
+            try {
+                Result result = repository.query(query);
+                future.complete(result);
+                return result;
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(query, future);
+            }
+        }
+        coalescedCount.incrementAndGet();
+        try {
+            return existingFuture.get(query.getTimeOut().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return Result.failed(query).withMessage("Query timed out after " + query.getTimeOut().toMillis() + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.failed(query).withMessage("Query was cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new QueryException("Query failed: " + query.getText(), cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", CoalescingRepository.class.getSimpleName() + "[", "]")
+                .add("repository=" + repository)
+                .add("inFlight=" + inFlight.size())
+                .add("executionCount=" + executionCount)
+                .add("coalescedCount=" + coalescedCount)
+                .toString();
+    }
+}
@@ -11,6 +11,8 @@ import static net.microfalx.lang.ExceptionUtils.rethrowExceptionAndReturn;
 @SuppressWarnings({"OptionalUsedAsFieldOrParameterType", "OptionalAssignedToNull"})
 class CompactSeries extends AbstractSeries {
 
+    static final int OVERHEAD_SIZE = 96;
+
     private static final int HEADER_SIZE = 4;
     private static final int VALUE_SIZE = 4 + 8;
     private static final byte[] SIGNATURE = {(byte) 0xA3, (byte) 0x98};
@@ -122,6 +124,22 @@ class CompactSeries extends AbstractSeries {
         return this;
     }
 
+    @Override
+    public long getEstimatedSize() {
+        return OVERHEAD_SIZE + data.length;
+    }
+
+    @Override
+    Series trim(int count) {
+        int newCount = Math.max(0, getCount() - count);
+        byte[] newData = new byte[HEADER_SIZE + newCount * VALUE_SIZE];
+        System.arraycopy(data, 0, newData, 0, HEADER_SIZE);
+        newData[2] = (byte) (newCount >>> 8);
+        newData[3] = (byte) newCount;
+        System.arraycopy(data, data.length - newCount * VALUE_SIZE, newData, HEADER_SIZE, newCount * VALUE_SIZE);
+        return new CompactSeries(getName(), newData).setRetention(getRetention());
+    }
+
     static byte[] compact(Collection<Value> values) {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         DataOutputStream dout = new DataOutputStream(buffer);
@@ -69,4 +69,14 @@ public class CompositeSeries extends AbstractSeries {
     public Series compact() {
         return null;
     }
+
+    @Override
+    public long getEstimatedSize() {
+        return 0;
+    }
+
+    @Override
+    Series trim(int count) {
+        return this;
+    }
 }
@@ -0,0 +1,224 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.util.StringJoiner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A deadline for the execution of a query, propagated to stores (and anything else executed on behalf of the
+ * query) through the current thread.
+ * <p>
+ * Long-running loops call {@link #check()} (or {@link #check(int)} for tight loops) to cooperatively stop
+ * the execution once the deadline expires or the thread which started the deadline is interrupted. Blocking
+ * operations which cannot check the deadline (like a JDBC statement) register a {@link #watch(Runnable) watch},
+ * which cancels them.
+ * <p>
+ * Deadlines nest; an inner deadline never extends the outer one. Work executed on other threads (like fork/join
+ * tasks) {@link #inherit(Deadline) inherits} the deadline of the thread which submitted it.
+ */
+final class Deadline implements AutoCloseable {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private static final int CHECK_INTERVAL_MASK = 1024 - 1;
+    private static final long WATCH_INTERVAL = 50;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Query Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Duration timeOut;
+    private final long expiresAt;
+    private final Deadline previous;
+    private final Thread owner;
+
+    /**
+     * Starts a deadline for the current thread.
+     * <p>
+     * The deadline must be {@link #close() closed} when the execution completes.
+     *
+     * @param timeOut the maximum duration of the execution
+     * @return a non-null instance
+     */
+    static Deadline start(Duration timeOut) {
+        requireNonNull(timeOut);
+        Deadline previous = CURRENT.get();
+        long expiresAt = System.nanoTime() + Math.max(0, timeOut.toNanos());
+        if (previous != null && previous.expiresAt - expiresAt < 0) expiresAt = previous.expiresAt;
+        Deadline deadline = new Deadline(timeOut, expiresAt, previous, Thread.currentThread());
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * Propagates a deadline (usually captured on another thread) to the current thread.
+     * <p>
+     * The current thread stops once the deadline expires or the thread which started the deadline is interrupted.
+     * The deadline must be {@link #close() closed} when the work completes.
+     *
+     * @param deadline the deadline, can be null
+     * @return the deadline of the current thread, null if there is no deadline to propagate
+     */
+    static Deadline inherit(Deadline deadline) {
+        if (deadline == null) return null;
+        Deadline previous = CURRENT.get();
+        long expiresAt = deadline.expiresAt;
+        if (previous != null && previous.expiresAt - expiresAt < 0) expiresAt = previous.expiresAt;
+        Deadline inherited = new Deadline(deadline.timeOut, expiresAt, previous, deadline.owner);
+        CURRENT.set(inherited);
+        return inherited;
+    }
+
+    /**
+     * Returns the deadline of the current thread.
+     *
+     * @return the deadline, null if there is no deadline
+     */
+    static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Checks whether the execution on the current thread can continue.
+     * <p>
+     * Without a deadline, the execution always continues (an interrupted thread is not a cancelled query).
+     *
+     * @throws QueryTimeoutException if the deadline expired or the execution was interrupted
+     */
+    static void check() {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) return;
+        if (deadline.isInterrupted(Thread.currentThread())) throw new QueryTimeoutException("Query was cancelled");
+        if (deadline.isExpired()) {
+            throw new QueryTimeoutException("Query timed out after " + deadline.timeOut.toMillis() + "ms");
+        }
+    }
+
+    /**
+     * Checks whether the execution on the current thread can continue, once every 1024 iterations.
+     *
+     * @param iteration the current iteration of a loop
+     * @throws QueryTimeoutException if the deadline expired or the execution was interrupted
+     */
+    static void check(int iteration) {
+        if ((iteration & CHECK_INTERVAL_MASK) == 0) check();
+    }
+
+    /**
+     * Returns the number of seconds left until the deadline of the current thread expires, rounded up.
+     *
+     * @return the number of seconds, 0 if there is no deadline
+     */
+    static int getRemainingSeconds() {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) return 0;
+        long remaining = deadline.getRemaining().toMillis();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000));
+    }
+
+    /**
+     * Watches a blocking operation of the current thread, which is cancelled (from another thread) once the
+     * deadline expires or the execution is interrupted. The operation is never cancelled after the watch is closed.
+     * <p>
+     * The watch must be {@link Watch#close() closed} when the operation completes.
+     *
+     * @param cancel the action which cancels the operation
+     * @return a non-null instance
+     */
+    static Watch watch(Runnable cancel) {
+        requireNonNull(cancel);
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) return () -> {
+        };
+        Thread thread = Thread.currentThread();
+        AtomicBoolean done = new AtomicBoolean();
+        ScheduledFuture<?> future = WATCHDOG.scheduleWithFixedDelay(() -> {
+            if (!deadline.isInterrupted(thread) && !deadline.isExpired()) return;
+            synchronized (done) {
+                if (done.compareAndSet(false, true)) cancel.run();
+            }
+        }, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+        return () -> {
+            synchronized (done) {
+                done.set(true);
+            }
+            future.cancel(false);
+        };
+    }
+
+    private Deadline(Duration timeOut, long expiresAt, Deadline previous, Thread owner) {
+        this.timeOut = timeOut;
+        this.expiresAt = expiresAt;
+        this.previous = previous;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the timeout used to create this deadline.
+     *
+     * @return a non-null instance
+     */
+    Duration getTimeOut() {
+        return timeOut;
+    }
+
+    /**
+     * Returns the time left until the deadline expires.
+     *
+     * @return a non-null instance, zero if expired
+     */
+    Duration getRemaining() {
+        return Duration.ofNanos(Math.max(0, expiresAt - System.nanoTime()));
+    }
+
+    /**
+     * Returns whether the deadline expired.
+     *
+     * @return {@code true} if expired, {@code false} otherwise
+     */
+    boolean isExpired() {
+        return System.nanoTime() - expiresAt >= 0;
+    }
+
+    private boolean isInterrupted(Thread thread) {
+        if (thread.isInterrupted() || owner.isInterrupted()) return true;
+        return previous != null && previous.owner != owner && previous.isInterrupted(thread);
+    }
+
+    @Override
+    public void close() {
+        if (CURRENT.get() != this) return;
+        if (previous != null) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Deadline.class.getSimpleName() + "[", "]")
+                .add("timeOut=" + timeOut)
+                .add("remaining=" + getRemaining())
+                .toString();
+    }
+
+    /**
+     * A blocking operation watched by a deadline.
+     */
+    interface Watch extends AutoCloseable {
+
+        /**
+         * Stops watching the operation.
+         */
+        @Override
+        void close();
+    }
+}
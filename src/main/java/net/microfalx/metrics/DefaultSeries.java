@@ -7,6 +7,7 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
 import static java.util.Collections.emptyList;
 import static net.microfalx.lang.CollectionUtils.toList;
@@ -18,6 +19,9 @@ import static net.microfalx.lang.CollectionUtils.toList;
 @DefaultSerializer(DefaultSeriesSerializer.class)
 public class DefaultSeries extends AbstractSeries {
 
+    static final int OVERHEAD_SIZE = 128;
+    static final int VALUE_SIZE = 32;
+
     final List<Value> values;
 
     private volatile OptionalDouble average;
@@ -61,6 +65,16 @@ public class DefaultSeries extends AbstractSeries {
         }
     }
 
+    @Override
+    <T> T read(Function<List<Value>, T> reader) {
+        rlock.lock();
+        try {
+            return reader.apply(Collections.unmodifiableList(values));
+        } finally {
+            rlock.unlock();
+        }
+    }
+
     public Value get(int index) {
         rlock.lock();
         try {
@@ -160,6 +174,40 @@ public class DefaultSeries extends AbstractSeries {
         wlock.lock();
         try {
             values.add(value);
+            invalidate();
+        } finally {
+            wlock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    Series addAll(List<Value> newValues) {
+        if (newValues.isEmpty()) return this;
+        wlock.lock();
+        try {
+            boolean sorted = (values.isEmpty() || values.get(values.size() - 1).getTimestamp() <= newValues.get(0).getTimestamp())
+                    && MetricUtils.isSorted(newValues);
+            values.addAll(newValues);
+            if (!sorted) values.sort(Comparator.comparing(Value::getTimestamp));
+            invalidate();
+        } finally {
+            wlock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return OVERHEAD_SIZE + (long) getCount() * VALUE_SIZE;
+    }
+
+    @Override
+    Series trim(int count) {
+        wlock.lock();
+        try {
+            values.subList(0, Math.min(count, values.size())).clear();
+            invalidate();
         } finally {
             wlock.unlock();
         }
@@ -182,4 +230,11 @@ public class DefaultSeries extends AbstractSeries {
     protected void afterChange() {
         values.sort(Comparator.comparing(Value::getTimestamp));
     }
+
+    private void invalidate() {
+        average = null;
+        minimum = null;
+        maximum = null;
+        weight = Double.MIN_VALUE;
+    }
 }
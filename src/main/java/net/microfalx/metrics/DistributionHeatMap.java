@@ -0,0 +1,312 @@
+package net.microfalx.metrics;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Duration;
+import java.util.*;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A heat map of a distribution (usually latencies) over time: one lane per value bucket, one column per time step
+ * and the number of values recorded in the bucket during the step as the cell.
+ * <p>
+ * The values are counted in log-linear buckets: each power of two is split in {@link #SUB_BUCKETS} linear buckets,
+ * so a bucket is at most 12.5% wide (relative to its lower bound) across the whole range, from
+ * 2<sup>{@value #MINIMUM_EXPONENT}</sup> to 2<sup>{@value #MAXIMUM_EXPONENT}</sup> (for durations, recorded in
+ * milliseconds, this is about 1 microsecond to 17 minutes). Smaller and larger values are counted in the first and
+ * the last bucket.
+ * <p>
+ * Only the bucket counts are stored (not the values), in a primitive array per time step, allocated when the first
+ * value arrives in the step. The steps form a ring over a sliding window, so the memory is bounded by the window.
+ * <p>
+ * The distribution can be fed with individual values or, as a coarse approximation, by sampling
+ * {@link Timer timers} and {@link Summary summaries} periodically, see {@link #record(long, Timer)}.
+ */
+public final class DistributionHeatMap {
+
+    /**
+     * The number of linear buckets for each power of two.
+     */
+    public static final int SUB_BUCKETS = 8;
+
+    /**
+     * The exponent (base 2) of the lower bound of the buckets.
+     */
+    public static final int MINIMUM_EXPONENT = -10;
+
+    /**
+     * The exponent (base 2) of the upper bound of the buckets.
+     */
+    public static final int MAXIMUM_EXPONENT = 20;
+
+    private static final int BUCKET_COUNT = (MAXIMUM_EXPONENT - MINIMUM_EXPONENT) * SUB_BUCKETS;
+    private static final double MINIMUM_VALUE = Math.scalb(1.0, MINIMUM_EXPONENT);
+
+    private final String name;
+    private final long step;
+    private final int capacity;
+    private final int[][] counts;
+    private long latest = Long.MIN_VALUE;
+
+    private final Map<Timer, long[]> timerSamples = new WeakHashMap<>();
+
+    /**
+     * Creates a distribution heat map.
+     *
+     * @param name   the name of the heat map
+     * @param step   the step (width of a time bucket)
+     * @param window the time covered by the heat map
+     * @return a non-null instance
+     */
+    public static DistributionHeatMap create(String name, Duration step, Duration window) {
+        return new DistributionHeatMap(name, step, window);
+    }
+
+    private DistributionHeatMap(String name, Duration step, Duration window) {
+        requireNonNull(name);
+        requireNonNull(step);
+        requireNonNull(window);
+        if (step.toMillis() <= 0) throw new IllegalArgumentException("Step must be positive");
+        if (window.compareTo(step) < 0) throw new IllegalArgumentException("Window must be at least one step");
+        this.name = name;
+        this.step = step.toMillis();
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, window.toMillis() / this.step);
+        this.counts = new int[capacity][];
+    }
+
+    /**
+     * Returns the name of the heat map.
+     *
+     * @return a non-null instance
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the step (width of a time bucket).
+     *
+     * @return a non-null instance
+     */
+    public Duration getStep() {
+        return Duration.ofMillis(step);
+    }
+
+    /**
+     * Returns the time covered by the heat map.
+     *
+     * @return a non-null instance
+     */
+    public Duration getWindow() {
+        return Duration.ofMillis(step * capacity);
+    }
+
+    /**
+     * Returns the number of value buckets.
+     *
+     * @return a positive integer
+     */
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Returns the index of the bucket which counts a value.
+     *
+     * @param value the value
+     * @return the index of the bucket
+     */
+    public int getBucket(double value) {
+        if (!(value >= MINIMUM_VALUE)) return 0;
+        int exponent = Math.getExponent(value);
+        if (exponent >= MAXIMUM_EXPONENT) return BUCKET_COUNT - 1;
+        int subBucket = (int) ((Math.scalb(value, -exponent) - 1) * SUB_BUCKETS);
+        return (exponent - MINIMUM_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the lower bound of a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the lower bound, inclusive
+     */
+    public double getLowerBound(int bucket) {
+        if (bucket < 0 || bucket >= BUCKET_COUNT) throw new IllegalArgumentException("Invalid bucket: " + bucket);
+        int exponent = MINIMUM_EXPONENT + bucket / SUB_BUCKETS;
+        return Math.scalb(1 + (double) (bucket % SUB_BUCKETS) / SUB_BUCKETS, exponent);
+    }
+
+    /**
+     * Returns the number of values recorded in a bucket during the step which contains a timestamp.
+     *
+     * @param timestamp the timestamp (millis since epoch)
+     * @param bucket    the index of the bucket
+     * @return a positive integer
+     */
+    public synchronized int getCount(long timestamp, int bucket) {
+        if (bucket < 0 || bucket >= BUCKET_COUNT) throw new IllegalArgumentException("Invalid bucket: " + bucket);
+        int[] stepCounts = getCounts(Math.floorDiv(timestamp, step));
+        return stepCounts != null ? stepCounts[bucket] : 0;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param timestamp the timestamp (millis since epoch)
+     * @param value     the value
+     * @return {@code true} if the value was recorded, {@code false} if it is older than the window
+     */
+    public boolean record(long timestamp, double value) {
+        return record(timestamp, value, 1);
+    }
+
+    /**
+     * Records a duration, in milliseconds.
+     *
+     * @param timestamp the timestamp (millis since epoch)
+     * @param duration  the duration
+     * @return {@code true} if the duration was recorded, {@code false} if it is older than the window
+     */
+    public boolean record(long timestamp, Duration duration) {
+        requireNonNull(duration);
+        return record(timestamp, toMillis(duration), 1);
+    }
+
+    /**
+     * Records the same value multiple times.
+     *
+     * @param timestamp the timestamp (millis since epoch)
+     * @param value     the value
+     * @param count     the number of times the value was observed
+     * @return {@code true} if the value was recorded, {@code false} if it is older than the window
+     */
+    public synchronized boolean record(long timestamp, double value, int count) {
+        if (count < 0) throw new IllegalArgumentException("Count must be positive");
+        long stepIndex = Math.floorDiv(timestamp, step);
+        if (latest == Long.MIN_VALUE) {
+            latest = stepIndex;
+        } else if (stepIndex <= latest - capacity) {
+            return false;
+        } else if (stepIndex > latest) {
+            advance(stepIndex);
+        }
+        int slot = (int) Math.floorMod(stepIndex, (long) capacity);
+        int[] stepCounts = counts[slot];
+        if (stepCounts == null) {
+            stepCounts = new int[BUCKET_COUNT];
+            counts[slot] = stepCounts;
+        }
+        stepCounts[getBucket(value)] += count;
+        return true;
+    }
+
+    /**
+     * Records an approximation of the durations observed by a timer since the previous call, in milliseconds.
+     * <p>
+     * Timers do not expose the individual durations (or a histogram of them), only counts, totals and, for a
+     * {@link Summary}, three percentiles; the recorded distribution is therefore a coarse approximation, built from
+     * the number of new observations:
+     * <ul>
+     *     <li>for a {@link Summary}, 50% of the new observations are recorded at the median, 45% at the 95th
+     *     percentile and the remaining 5% at the 99th percentile. The percentiles are computed by the summary over
+     *     its own (decaying) window, not over the interval since the previous call, so shifts within the interval
+     *     show up late and the real shape of the distribution (below the median, between the percentiles) is
+     *     not visible</li>
+     *     <li>for other timers, all the new observations are recorded at their average duration</li>
+     * </ul>
+     * Use {@link #record(long, double)} to record the real distribution, when the individual durations are
+     * available.
+     * <p>
+     * The first call for a timer only establishes the baseline. The baseline is kept per timer (compared with
+     * {@link Object#equals(Object)}) and released once the timer is no longer referenced.
+     *
+     * @param timestamp the timestamp (millis since epoch)
+     * @param timer     the timer
+     * @return the number of durations recorded
+     */
+    public synchronized long record(long timestamp, Timer timer) {
+        requireNonNull(timer);
+        long count = timer.getCount();
+        long total = timer.getDuration().toNanos();
+        long[] previous = timerSamples.put(timer, new long[]{count, total});
+        if (previous == null || count <= previous[0]) return 0;
+        int newCount = (int) Math.min(Integer.MAX_VALUE, count - previous[0]);
+        if (timer instanceof Summary) {
+            Duration[] percentiles = ((Summary) timer).getPercentiles();
+            int medianCount = newCount / 2;
+            int tailCount = (int) ((long) newCount * 95 / 100) - medianCount;
+            if (!record(timestamp, toMillis(percentiles[Percentile.P50.ordinal()]), medianCount)) return 0;
+            record(timestamp, toMillis(percentiles[Percentile.P95.ordinal()]), tailCount);
+            record(timestamp, toMillis(percentiles[Percentile.P99.ordinal()]), newCount - medianCount - tailCount);
+        } else {
+            double average = (total - previous[1]) / 1_000_000d / newCount;
+            if (!record(timestamp, average, newCount)) return 0;
+        }
+        return newCount;
+    }
+
+    /**
+     * Returns the heat map: one lane (series) for each bucket between the lowest and the highest bucket with values
+     * in the window, named after the lower bound of the bucket and sorted by bucket, with the number of values
+     * recorded at each step.
+     *
+     * @return a non-null instance
+     */
+    public synchronized HeatMap toHeatMap() {
+        int minimumBucket = BUCKET_COUNT;
+        int maximumBucket = -1;
+        for (int[] stepCounts : counts) {
+            if (stepCounts == null) continue;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                if (stepCounts[bucket] == 0) continue;
+                minimumBucket = Math.min(minimumBucket, bucket);
+                maximumBucket = Math.max(maximumBucket, bucket);
+            }
+        }
+        List<Series> series = new ArrayList<>();
+        for (int bucket = minimumBucket; bucket <= maximumBucket; bucket++) {
+            long[] timestamps = new long[capacity];
+            float[] values = new float[capacity];
+            int count = 0;
+            for (long stepIndex = latest - capacity + 1; stepIndex <= latest; stepIndex++) {
+                int[] stepCounts = counts[(int) Math.floorMod(stepIndex, (long) capacity)];
+                if (stepCounts == null || stepCounts[bucket] == 0) continue;
+                timestamps[count] = stepIndex * step;
+                values[count++] = stepCounts[bucket];
+            }
+            series.add(new ArraySeries(formatBound(getLowerBound(bucket)), timestamps, values, 0, count));
+        }
+        return new HeatMap(name, series, 0);
+    }
+
+    private int[] getCounts(long stepIndex) {
+        if (latest == Long.MIN_VALUE || stepIndex > latest || stepIndex <= latest - capacity) return null;
+        return counts[(int) Math.floorMod(stepIndex, (long) capacity)];
+    }
+
+    private void advance(long stepIndex) {
+        long expired = Math.min(stepIndex - latest, capacity);
+        for (long current = latest + 1; current <= latest + expired; current++) {
+            counts[(int) Math.floorMod(current, (long) capacity)] = null;
+        }
+        latest = stepIndex;
+    }
+
+    private static double toMillis(Duration duration) {
+        return duration.toNanos() / 1_000_000d;
+    }
+
+    private static String formatBound(double bound) {
+        return BigDecimal.valueOf(bound).round(new MathContext(3)).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", DistributionHeatMap.class.getSimpleName() + "[", "]")
+                .add("name='" + name + "'")
+                .add("step=" + getStep())
+                .add("window=" + getWindow())
+                .toString();
+    }
+}
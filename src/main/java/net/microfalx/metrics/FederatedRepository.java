@@ -0,0 +1,197 @@
+package net.microfalx.metrics;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.unmodifiableList;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A repository which federates queries across several repositories.
+ * <p>
+ * A query is sent, in parallel, to every repository which is {@link Repository#isAvailable() available} and
+ * {@link Repository#supports(Query) supports} the query, each one executed under the
+ * {@link Query#getTimeOut() timeout} of the query and the deadline of the caller, if any (a cancelled caller
+ * cancels all repositories). The latency of a query is the latency of the slowest
+ * repository, not the sum of all latencies.
+ * <p>
+ * The results are merged by metric: the values of matrixes for the same metric are merged (one value per
+ * timestamp, overlapping values are dropped), and for vectors the most recent value is kept. Scalar and text
+ * results are taken from the first repository (in the order of registration) which returns a result.
+ * <p>
+ * Repositories which fail or time out do not fail the query, as long as at least one repository answers; their
+ * errors are reported in the message of the result.
+ */
+public final class FederatedRepository implements Repository {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Metrics Federation " + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Repository> repositories;
+    private volatile String lastError;
+
+    /**
+     * Creates a federated repository.
+     *
+     * @param repositories the repositories
+     * @return a non-null instance
+     */
+    public static FederatedRepository create(Repository... repositories) {
+        return create(Arrays.asList(repositories));
+    }
+
+    /**
+     * Creates a federated repository.
+     *
+     * @param repositories the repositories
+     * @return a non-null instance
+     */
+    public static FederatedRepository create(Collection<? extends Repository> repositories) {
+        return new FederatedRepository(repositories);
+    }
+
+    private FederatedRepository(Collection<? extends Repository> repositories) {
+        requireNonNull(repositories);
+        this.repositories = unmodifiableList(new ArrayList<>(repositories));
+    }
+
+    /**
+     * Returns the repositories federated by this repository.
+     *
+     * @return a non-null instance
+     */
+    public List<Repository> getRepositories() {
+        return repositories;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        for (Repository repository : repositories) {
+            if (repository.isAvailable()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean supports(Query query) {
+        requireNonNull(query);
+        return !getRepositories(query).isEmpty();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public Result query(Query query) {
+        requireNonNull(query);
+        List<Repository> members = getRepositories(query);
+        if (members.isEmpty()) {
+            return fail(query, "No repository supports queries of type '" + query.getType() + "'");
+        }
+        List<Future<Result>> futures = new ArrayList<>(members.size());
+        Deadline parent = Deadline.current();
+        for (Repository member : members) {
+            futures.add(EXECUTOR.submit(() -> {
+                try (Deadline inherited = Deadline.inherit(parent); Deadline ignored = Deadline.start(query.getTimeOut())) {
+                    return member.query(query);
+                }
+            }));
+        }
+        long expiresAt = System.nanoTime() + query.getTimeOut().toNanos();
+        List<Result> results = new ArrayList<>(members.size());
+        StringJoiner errors = new StringJoiner("; ");
+        for (int index = 0; index < members.size(); index++) {
+            Repository member = members.get(index);
+            Future<Result> future = futures.get(index);
+            try {
+                Result result = future.get(Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (result.isSuccessful()) {
+                    results.add(result);
+                } else {
+                    errors.add(member + ": " + result.getMessage());
+                }
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                errors.add(member + ": timed out after " + query.getTimeOut().toMillis() + "ms");
+            } catch (ExecutionException e) {
+                errors.add(member + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(pendingFuture -> pendingFuture.cancel(true));
+                return fail(query, "Query was cancelled");
+            }
+        }
+        String message = errors.length() > 0 ? errors.toString() : null;
+        lastError = message;
+        if (results.isEmpty()) return fail(query, message);
+        Result result = merge(query, results);
+        return message != null ? result.withMessage(message) : result;
+    }
+
+    private List<Repository> getRepositories(Query query) {
+        List<Repository> members = new ArrayList<>();
+        for (Repository repository : repositories) {
+            if (repository.isAvailable() && repository.supports(query)) members.add(repository);
+        }
+        return members;
+    }
+
+    private Result fail(Query query, String message) {
+        lastError = message;
+        return Result.failed(query).withMessage(message);
+    }
+
+    private static Result merge(Query query, List<Result> results) {
+        Result first = results.get(0);
+        switch (first.getType()) {
+            case MATRIX:
+                return Result.matrix(query, mergeMatrixes(results));
+            case VECTOR:
+                return Result.vector(query, mergeVectors(results));
+            default:
+                return first;
+        }
+    }
+
+    private static Collection<Matrix> mergeMatrixes(List<Result> results) {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        Map<String, List<List<Value>>> values = new HashMap<>();
+        for (Result result : results) {
+            for (Matrix matrix : result.getMatrixes()) {
+                String hash = matrix.getMetric().getHash();
+                metrics.putIfAbsent(hash, matrix.getMetric());
+                values.computeIfAbsent(hash, key -> new ArrayList<>()).add(matrix.getValues());
+            }
+        }
+        Collection<Matrix> matrixes = new ArrayList<>(metrics.size());
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            matrixes.add(Matrix.create(entry.getValue(), MetricUtils.merge(values.get(entry.getKey()), true)));
+        }
+        return matrixes;
+    }
+
+    private static Collection<Vector> mergeVectors(List<Result> results) {
+        Map<String, Vector> vectors = new LinkedHashMap<>();
+        for (Result result : results) {
+            for (Vector vector : result.getVectors()) {
+                vectors.merge(vector.getMetric().getHash(), vector, (existing, current) ->
+                        current.getValue().getTimestamp() > existing.getValue().getTimestamp() ? current : existing);
+            }
+        }
+        return vectors.values();
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", FederatedRepository.class.getSimpleName() + "[", "]")
+                .add("repositories=" + repositories)
+                .toString();
+    }
+}
@@ -3,6 +3,7 @@ package net.microfalx.metrics;
 import net.microfalx.lang.Identifiable;
 import net.microfalx.lang.Nameable;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -103,10 +104,12 @@ public final class HeatMap implements Identifiable<String>, Nameable {
 
     private List<Series> trimSeries(List<Series> series) {
         if (maximumLanes <= 0 || series.size() < maximumLanes) return series;
-        List<Series> sortedSeries = new ArrayList<>(series);
-        sortedSeries.sort(Comparator.comparing(Series::getWeight).reversed());
-        sortedSeries = sortedSeries.subList(0, maximumLanes);
-        Set<String> ids = sortedSeries.stream().map(Series::getId).collect(Collectors.toSet());
+        BoundedHeap<Series> heap = new BoundedHeap<>(maximumLanes);
+        for (Series currentSeries : series) {
+            double weight = currentSeries.getWeight();
+            heap.add(currentSeries, Double.isNaN(weight) ? Double.NEGATIVE_INFINITY : weight);
+        }
+        Set<String> ids = heap.toList().stream().map(Series::getId).collect(Collectors.toSet());
         return series.stream().filter(s -> ids.contains(s.getId())).collect(Collectors.toList());
     }
 
@@ -122,9 +125,10 @@ public final class HeatMap implements Identifiable<String>, Nameable {
 
     static class MatrixBuilder {
 
+        private static final Duration STEP = Duration.ofSeconds(1);
+
         private final Collection<Matrix> matrices;
         private final int maximumLanes;
-        private final Map<String, Map<String, Map<Long, Value>>> series = new HashMap<>();
 
         MatrixBuilder(Collection<Matrix> matrices, int maximumLanes) {
             requireNonNull(matrices);
@@ -132,43 +136,29 @@ public final class HeatMap implements Identifiable<String>, Nameable {
             this.maximumLanes = maximumLanes;
         }
 
-        private void append(Matrix matrix) {
-            Metric metric = matrix.getMetric();
-            for (String label : metric.getLabels()) {
-                String labelValue = metric.getLabel(label);
-                for (Value value : matrix.getValues()) {
-                    Map<String, Map<Long, Value>> perLabelMap = series.computeIfAbsent(label, l -> new HashMap<>());
-                    Map<Long, Value> values = perLabelMap.computeIfAbsent(labelValue, s -> new HashMap<>());
-                    Value newValue = values.computeIfAbsent(value.getTimestamp(), t -> value).add(value.getValue());
-                    values.put(value.getTimestamp(), newValue);
-                }
+        private HeatMap buildHeatMap(String label) {
+            Aggregation aggregation = new Aggregation().setStep(STEP).setGroupBy(label);
+            for (Matrix matrix : matrices) {
+                if (matrix.getMetric().hasLabel(label)) aggregation.add(matrix);
             }
-        }
-
-        private Series buildSeries(String name, Map<Long, Value> values) {
-            return Series.create(name, values.values());
-        }
-
-        private HeatMap buildHeatMap(String name, Map<String, Map<Long, Value>> values) {
             List<Series> series = new ArrayList<>();
-            series.sort(Comparator.comparing(Series::getName));
-            for (Map.Entry<String, Map<Long, Value>> entry : values.entrySet()) {
-                series.add(buildSeries(entry.getKey(), entry.getValue()));
+            for (Matrix matrix : aggregation.toMatrixes()) {
+                series.add(Series.create(matrix.getMetric().getLabel(label), matrix.getValues()));
             }
-            return HeatMap.create(name, series, maximumLanes);
+            series.sort(Comparator.comparing(Series::getName));
+            return HeatMap.create(label, series, maximumLanes);
         }
 
         Collection<HeatMap> build() {
+            Set<String> labels = new LinkedHashSet<>();
             for (Matrix matrix : matrices) {
-                append(matrix);
+                labels.addAll(matrix.getMetric().getLabels());
             }
             Collection<HeatMap> heatMaps = new ArrayList<>();
-            for (Map.Entry<String, Map<String, Map<Long, Value>>> entry : series.entrySet()) {
-                heatMaps.add(buildHeatMap(entry.getKey(), entry.getValue()));
+            for (String label : labels) {
+                heatMaps.add(buildHeatMap(label));
             }
             return heatMaps;
         }
     }
-
-
 }
@@ -0,0 +1,288 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.util.*;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * An incremental model of a {@link HeatMap}, fed with values as they arrive.
+ * <p>
+ * The values are summed in a dense grid of primitives, with one lane per value of a label and one column per time
+ * bucket (step). The grid covers a sliding window: the columns form a ring, so when a value arrives in a new bucket
+ * only the columns which fall out of the window are cleared and reused. Each lane keeps a running total over the
+ * window, so the lanes are ranked (to keep the top {@link #getMaximumLanes() lanes}) without scanning the grid.
+ * A lane which has no values left in the window is released and its row is reused by the next new lane, so the grid
+ * grows with the number of lanes active at the same time, not with the number of label values ever seen.
+ * <p>
+ * The heat map is created on demand and kept until new values arrive. A refresh only ingests the values which
+ * arrived since the previous refresh (instead of aggregating all the matrices again, like
+ * {@link HeatMap#create(Collection)}); creating the heat map itself only reads the cells of the selected lanes.
+ */
+public final class HeatMapGrid {
+
+    private static final int INITIAL_LANES = 8;
+
+    private final String label;
+    private final long step;
+    private final int capacity;
+    private final int maximumLanes;
+
+    private final Map<String, Integer> lanes = new HashMap<>();
+    private String[] laneNames = new String[INITIAL_LANES];
+    private double[] totals = new double[INITIAL_LANES];
+    private int[] cellCounts = new int[INITIAL_LANES];
+    private float[] cells;
+    private int laneCount;
+    private final Deque<Integer> freeLanes = new ArrayDeque<>();
+    private long latest = Long.MIN_VALUE;
+
+    private HeatMap heatMap;
+
+    /**
+     * Creates a grid with maximum {@link HeatMap#DEFAULT_MAXIMUM_LANES} lanes.
+     *
+     * @param label  the label which identifies the lanes
+     * @param step   the step (width of a time bucket)
+     * @param window the time covered by the grid
+     * @return a non-null instance
+     */
+    public static HeatMapGrid create(String label, Duration step, Duration window) {
+        return create(label, step, window, HeatMap.DEFAULT_MAXIMUM_LANES);
+    }
+
+    /**
+     * Creates a grid.
+     *
+     * @param label        the label which identifies the lanes
+     * @param step         the step (width of a time bucket)
+     * @param window       the time covered by the grid
+     * @param maximumLanes the maximum number of lanes in the heat map, 0 or less for all
+     * @return a non-null instance
+     */
+    public static HeatMapGrid create(String label, Duration step, Duration window, int maximumLanes) {
+        return new HeatMapGrid(label, step, window, maximumLanes);
+    }
+
+    private HeatMapGrid(String label, Duration step, Duration window, int maximumLanes) {
+        requireNonNull(label);
+        requireNonNull(step);
+        requireNonNull(window);
+        if (step.toMillis() <= 0) throw new IllegalArgumentException("Step must be positive");
+        if (window.compareTo(step) < 0) throw new IllegalArgumentException("Window must be at least one step");
+        this.label = label;
+        this.step = step.toMillis();
+        this.capacity = (int) Math.min(Integer.MAX_VALUE / INITIAL_LANES, window.toMillis() / this.step);
+        this.maximumLanes = maximumLanes;
+        this.cells = new float[INITIAL_LANES * capacity];
+        Arrays.fill(cells, Float.NaN);
+    }
+
+    /**
+     * Returns the label which identifies the lanes.
+     *
+     * @return a non-null instance
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Returns the step (width of a time bucket).
+     *
+     * @return a non-null instance
+     */
+    public Duration getStep() {
+        return Duration.ofMillis(step);
+    }
+
+    /**
+     * Returns the time covered by the grid.
+     *
+     * @return a non-null instance
+     */
+    public Duration getWindow() {
+        return Duration.ofMillis(step * capacity);
+    }
+
+    /**
+     * Returns the maximum number of lanes in the heat map.
+     *
+     * @return the number of lanes, 0 or less for all
+     */
+    public int getMaximumLanes() {
+        return maximumLanes;
+    }
+
+    /**
+     * Returns the number of lanes (distinct values of the label) in the grid.
+     *
+     * @return a positive integer
+     */
+    public synchronized int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Adds a value to the grid.
+     * <p>
+     * Values of metrics without the label and values older than the window are ignored.
+     *
+     * @param metric the metric
+     * @param value  the value
+     * @return {@code true} if the value was added, {@code false} if it was ignored
+     */
+    public boolean add(Metric metric, Value value) {
+        requireNonNull(metric);
+        requireNonNull(value);
+        String laneName = metric.getLabel(label);
+        if (laneName == null) return false;
+        synchronized (this) {
+            return add(laneName, value.getTimestamp(), value.getValue());
+        }
+    }
+
+    /**
+     * Adds the values of a matrix to the grid.
+     *
+     * @param matrix the matrix
+     * @return the number of values added
+     */
+    public int add(Matrix matrix) {
+        requireNonNull(matrix);
+        String laneName = matrix.getMetric().getLabel(label);
+        if (laneName == null) return 0;
+        int count = 0;
+        synchronized (this) {
+            for (int index = 0; index < matrix.getCount(); index++) {
+                if (add(laneName, matrix.getTimestamp(index), matrix.getValue(index))) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the heat map, with the lanes with the highest total over the window, sorted by name.
+     *
+     * @return a non-null instance
+     */
+    public synchronized HeatMap toHeatMap() {
+        if (heatMap == null) {
+            List<Integer> selectedLanes = new ArrayList<>();
+            if (maximumLanes > 0 && lanes.size() > maximumLanes) {
+                BoundedHeap<Integer> heap = new BoundedHeap<>(maximumLanes);
+                for (int lane = 0; lane < laneCount; lane++) {
+                    if (cellCounts[lane] > 0) heap.add(lane, totals[lane]);
+                }
+                selectedLanes.addAll(heap.toList());
+            } else {
+                for (int lane = 0; lane < laneCount; lane++) {
+                    if (cellCounts[lane] > 0) selectedLanes.add(lane);
+                }
+            }
+            selectedLanes.sort(Comparator.comparing(lane -> laneNames[lane]));
+            List<Series> series = new ArrayList<>(selectedLanes.size());
+            for (int lane : selectedLanes) {
+                series.add(toSeries(lane));
+            }
+            heatMap = new HeatMap(label, series, maximumLanes);
+        }
+        return heatMap;
+    }
+
+    private boolean add(String laneName, long timestamp, float value) {
+        long bucket = Math.floorDiv(timestamp, step);
+        if (latest == Long.MIN_VALUE) {
+            latest = bucket;
+        } else if (bucket <= latest - capacity) {
+            return false;
+        } else if (bucket > latest) {
+            advance(bucket);
+        }
+        int lane = getOrCreateLane(laneName);
+        int index = lane * capacity + (int) Math.floorMod(bucket, (long) capacity);
+        float cell = cells[index];
+        if (Float.isNaN(cell)) {
+            cells[index] = value;
+            cellCounts[lane]++;
+        } else {
+            cells[index] = cell + value;
+        }
+        totals[lane] += value;
+        heatMap = null;
+        return true;
+    }
+
+    private void advance(long bucket) {
+        long expired = Math.min(bucket - latest, capacity);
+        for (long current = latest + 1; current <= latest + expired; current++) {
+            int column = (int) Math.floorMod(current, (long) capacity);
+            for (int lane = 0; lane < laneCount; lane++) {
+                int index = lane * capacity + column;
+                float cell = cells[index];
+                if (Float.isNaN(cell)) continue;
+                totals[lane] -= cell;
+                cells[index] = Float.NaN;
+                if (--cellCounts[lane] == 0) releaseLane(lane);
+            }
+        }
+        latest = bucket;
+    }
+
+    private void releaseLane(int lane) {
+        lanes.remove(laneNames[lane]);
+        laneNames[lane] = null;
+        totals[lane] = 0;
+        freeLanes.push(lane);
+    }
+
+    private int getOrCreateLane(String laneName) {
+        Integer lane = lanes.get(laneName);
+        if (lane != null) return lane;
+        lane = freeLanes.poll();
+        if (lane != null) {
+            laneNames[lane] = laneName;
+            lanes.put(laneName, lane);
+            return lane;
+        }
+        if (laneCount == laneNames.length) {
+            int newLength = laneNames.length * 2;
+            if ((long) newLength * capacity > Integer.MAX_VALUE) {
+                throw new MetricException("Too many lanes for heat map '" + label + "'");
+            }
+            laneNames = Arrays.copyOf(laneNames, newLength);
+            totals = Arrays.copyOf(totals, newLength);
+            cellCounts = Arrays.copyOf(cellCounts, newLength);
+            int previousLength = cells.length;
+            cells = Arrays.copyOf(cells, newLength * capacity);
+            Arrays.fill(cells, previousLength, cells.length, Float.NaN);
+        }
+        laneNames[laneCount] = laneName;
+        lanes.put(laneName, laneCount);
+        return laneCount++;
+    }
+
+    private Series toSeries(int lane) {
+        long[] timestamps = new long[capacity];
+        float[] values = new float[capacity];
+        int count = 0;
+        for (long bucket = latest - capacity + 1; bucket <= latest; bucket++) {
+            float cell = cells[lane * capacity + (int) Math.floorMod(bucket, (long) capacity)];
+            if (Float.isNaN(cell)) continue;
+            timestamps[count] = bucket * step;
+            values[count++] = cell;
+        }
+        return new ArraySeries(laneNames[lane], timestamps, values, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", HeatMapGrid.class.getSimpleName() + "[", "]")
+                .add("label='" + label + "'")
+                .add("step=" + getStep())
+                .add("window=" + getWindow())
+                .add("lanes=" + lanes.size())
+                .add("maximumLanes=" + maximumLanes)
+                .toString();
+    }
+}
@@ -4,16 +4,28 @@ import net.microfalx.lang.CollectionUtils;
 
 import java.util.*;
 
-import static java.util.Collections.unmodifiableList;
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
 
 /**
  * A matrix of values for a metric.
+ * <p>
+ * The values are kept in primitive arrays (timestamps and values), sorted by timestamp. A matrix is immutable,
+ * so the arrays are shared with the series created from the matrix (and with the matrix created from such a
+ * series). The statistics (average, minimum, maximum and sum) are calculated once, in a single pass.
  */
 public final class Matrix {
 
+    private static final long[] EMPTY_TIMESTAMPS = new long[0];
+    private static final float[] EMPTY_VALUES = new float[0];
+
     private final Metric metric;
-    private final List<Value> values;
+    private final long[] timestamps;
+    private final float[] values;
+    private final int offset;
+    private final int count;
+
+    private volatile Statistics statistics;
 
     /**
      * Creates a matrix for a given metrics with no values.
@@ -22,7 +34,7 @@ public final class Matrix {
      * @return a non-null instance
      */
     public static Matrix empty(Metric metric) {
-        return create(metric, Collections.emptyList());
+        return new Matrix(metric, EMPTY_TIMESTAMPS, EMPTY_VALUES, 0, 0);
     }
 
     /**
@@ -33,7 +45,7 @@ public final class Matrix {
      * @return a non-null instance
      */
     public static Matrix create(Metric metric, Iterator<Value> values) {
-        return new Matrix(metric, CollectionUtils.toIterable(values));
+        return create(metric, CollectionUtils.toIterable(values));
     }
 
     /**
@@ -44,14 +56,61 @@ public final class Matrix {
      * @return a non-null instance
      */
     public static Matrix create(Metric metric, Iterable<Value> values) {
-        return new Matrix(metric, values);
+        requireNonNull(values);
+        List<Value> list = values instanceof List ? (List<Value>) values : CollectionUtils.toList(values);
+        if (!MetricUtils.isSorted(list)) {
+            list = new ArrayList<>(list);
+            list.sort(Comparator.comparing(Value::getTimestamp));
+        }
+        long[] timestamps = new long[list.size()];
+        float[] floats = new float[list.size()];
+        int index = 0;
+        for (Value value : list) {
+            timestamps[index] = value.getTimestamp();
+            floats[index++] = value.getValue();
+        }
+        return new Matrix(metric, timestamps, floats, 0, timestamps.length);
+    }
+
+    /**
+     * Creates a matrix for a given metric and the values of a series.
+     * <p>
+     * If the series was created from a matrix, the values are shared (not copied).
+     *
+     * @param metric the metric
+     * @param series the series
+     * @return a non-null instance
+     */
+    public static Matrix create(Metric metric, Series series) {
+        requireNonNull(series);
+        if (series instanceof ArraySeries) {
+            ArraySeries arraySeries = (ArraySeries) series;
+            return new Matrix(metric, arraySeries.getTimestampArray(), arraySeries.getValueArray(),
+                    arraySeries.getOffset(), arraySeries.getCount());
+        }
+        return create(metric, series.getValues());
+    }
+
+    /**
+     * Creates a matrix from primitive arrays, sorted by timestamp, without copying them.
+     *
+     * @param metric     the metric
+     * @param timestamps the timestamps
+     * @param values     the values
+     * @param count      the number of values
+     * @return a non-null instance
+     */
+    static Matrix create(Metric metric, long[] timestamps, float[] values, int count) {
+        return new Matrix(metric, timestamps, values, 0, count);
     }
 
-    Matrix(Metric metric, Iterable<Value> values) {
+    private Matrix(Metric metric, long[] timestamps, float[] values, int offset, int count) {
         requireNonNull(metric);
         this.metric = metric;
-        this.values = CollectionUtils.toList(values);
-        this.values.sort(Comparator.comparing(Value::getTimestamp));
+        this.timestamps = timestamps;
+        this.values = values;
+        this.offset = offset;
+        this.count = count;
     }
 
     /**
@@ -65,11 +124,35 @@ public final class Matrix {
 
     /**
      * Returns the values.
+     * <p>
+     * The list is a read-only view over the values of the matrix.
      *
      * @return a non-nll instance
      */
     public List<Value> getValues() {
-        return unmodifiableList(values);
+        return new ListWrapper();
+    }
+
+    /**
+     * Returns the timestamp of a value.
+     *
+     * @param index the index of the value
+     * @return millis since epoch
+     */
+    public long getTimestamp(int index) {
+        requireBounded(index, 0, count - 1);
+        return timestamps[offset + index];
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param index the index of the value
+     * @return the value
+     */
+    public float getValue(int index) {
+        requireBounded(index, 0, count - 1);
+        return values[offset + index];
     }
 
     /**
@@ -78,7 +161,7 @@ public final class Matrix {
      * @return a positive integer
      */
     public int getCount() {
-        return values.size();
+        return count;
     }
 
     /**
@@ -87,7 +170,7 @@ public final class Matrix {
      * @return an optional value
      */
     public Optional<Value> getFirst() {
-        return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+        return count == 0 ? Optional.empty() : Optional.of(get(0));
     }
 
     /**
@@ -96,7 +179,7 @@ public final class Matrix {
      * @return the value, null if there are no values available
      */
     public Optional<Value> getLast() {
-        return values.isEmpty() ? Optional.empty() : Optional.of(values.get(values.size() - 1));
+        return count == 0 ? Optional.empty() : Optional.of(get(count - 1));
     }
 
     /**
@@ -105,7 +188,7 @@ public final class Matrix {
      * @return an optional average
      */
     public OptionalDouble getAverage() {
-        return values.stream().mapToDouble(Value::asDouble).average();
+        return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(getStatistics().sum / count);
     }
 
     /**
@@ -114,7 +197,7 @@ public final class Matrix {
      * @return an optional average
      */
     public OptionalDouble getMinimum() {
-        return values.stream().mapToDouble(Value::asDouble).min();
+        return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(getStatistics().minimum);
     }
 
     /**
@@ -123,7 +206,7 @@ public final class Matrix {
      * @return an optional average
      */
     public OptionalDouble getMaximum() {
-        return values.stream().mapToDouble(Value::asDouble).max();
+        return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(getStatistics().maximum);
     }
 
     /**
@@ -132,23 +215,91 @@ public final class Matrix {
      * @return the sum
      */
     public double getSum() {
-        return values.stream().mapToDouble(Value::asDouble).sum();
+        return getStatistics().sum;
     }
 
     /**
      * Creates a series out of a matrix.
+     * <p>
+     * The series holds a copy of the values, so it can be changed without changing the matrix.
      *
      * @return a non-null instance
      */
     public Series toSeries() {
-        return Series.create(String.join(" / ", metric.getLabels()), values);
+        return Series.create(String.join(" / ", metric.getLabels()), getValues());
+    }
+
+    /**
+     * Creates a series with a given name out of a matrix.
+     * <p>
+     * The series shares the values with the matrix, so it is immutable (operations which change the series return
+     * a new instance).
+     *
+     * @param name the name of the series
+     * @return a non-null instance
+     */
+    Series toSeries(String name) {
+        return new ArraySeries(name, timestamps, values, offset, count);
+    }
+
+    /**
+     * Copies the values of the matrix into arrays.
+     *
+     * @param index      the index of the first value to copy
+     * @param timestamps the target for timestamps
+     * @param values     the target for values
+     * @param length     the number of values to copy
+     */
+    void copy(int index, long[] timestamps, float[] values, int length) {
+        System.arraycopy(this.timestamps, offset + index, timestamps, 0, length);
+        System.arraycopy(this.values, offset + index, values, 0, length);
+    }
+
+    private Value get(int index) {
+        return Value.create(timestamps[offset + index], values[offset + index]);
+    }
+
+    private Statistics getStatistics() {
+        Statistics statistics = this.statistics;
+        if (statistics == null) {
+            statistics = new Statistics();
+            for (int index = offset; index < offset + count; index++) {
+                double value = values[index];
+                statistics.sum += value;
+                statistics.minimum = Math.min(statistics.minimum, value);
+                statistics.maximum = Math.max(statistics.maximum, value);
+            }
+            this.statistics = statistics;
+        }
+        return statistics;
     }
 
     @Override
     public String toString() {
         return new StringJoiner(", ", Matrix.class.getSimpleName() + "[", "]")
                 .add("metric=" + metric)
-                .add("values=" + values.size())
+                .add("values=" + count)
                 .toString();
     }
+
+    private static final class Statistics {
+
+        private double sum;
+        private double minimum = Double.MAX_VALUE;
+        private double maximum = -Double.MAX_VALUE;
+    }
+
+    private final class ListWrapper extends AbstractList<Value> implements RandomAccess {
+
+        @Override
+        public Value get(int index) {
+            requireBounded(index, 0, count - 1);
+            return Matrix.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
 }
@@ -0,0 +1,130 @@
+package net.microfalx.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A block of consecutive values of a {@link Matrix}, used to stream large results.
+ * <p>
+ * The timestamps and values are kept in primitive arrays; a matrix is streamed as one or more chunks (in
+ * timestamp order), the last one being marked with {@link #isLast()}.
+ */
+public final class MatrixChunk {
+
+    /**
+     * The default (maximum) number of values in a chunk.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final Metric metric;
+    private final long[] timestamps;
+    private final float[] values;
+    private final int count;
+    private final boolean last;
+
+    /**
+     * Splits a matrix into chunks.
+     *
+     * @param matrix   the matrix
+     * @param size     the maximum number of values in a chunk
+     * @param consumer the consumer of chunks
+     */
+    static void split(Matrix matrix, int size, Consumer<MatrixChunk> consumer) {
+        requireNonNull(matrix);
+        requireBounded(size, 1, Integer.MAX_VALUE);
+        int index = 0;
+        do {
+            int count = Math.min(size, matrix.getCount() - index);
+            long[] timestamps = new long[count];
+            float[] values = new float[count];
+            matrix.copy(index, timestamps, values, count);
+            index += count;
+            consumer.accept(new MatrixChunk(matrix.getMetric(), timestamps, values, count, index == matrix.getCount()));
+        } while (index < matrix.getCount());
+    }
+
+    MatrixChunk(Metric metric, long[] timestamps, float[] values, int count, boolean last) {
+        requireNonNull(metric);
+        this.metric = metric;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.count = count;
+        this.last = last;
+    }
+
+    /**
+     * Returns the metric.
+     *
+     * @return a non-null instance
+     */
+    public Metric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the number of values in this chunk.
+     *
+     * @return a positive integer
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the timestamp of a value.
+     *
+     * @param index the index of the value
+     * @return millis since epoch
+     */
+    public long getTimestamp(int index) {
+        requireBounded(index, 0, count - 1);
+        return timestamps[index];
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param index the index of the value
+     * @return the value
+     */
+    public float getValue(int index) {
+        requireBounded(index, 0, count - 1);
+        return values[index];
+    }
+
+    /**
+     * Returns whether this is the last chunk of the matrix.
+     *
+     * @return {@code true} if last, {@code false} otherwise
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * Returns the values of this chunk.
+     *
+     * @return a non-null instance
+     */
+    public List<Value> toValues() {
+        List<Value> result = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            result.add(Value.create(timestamps[index], values[index]));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", MatrixChunk.class.getSimpleName() + "[", "]")
+                .add("metric=" + metric)
+                .add("count=" + count)
+                .add("last=" + last)
+                .toString();
+    }
+}
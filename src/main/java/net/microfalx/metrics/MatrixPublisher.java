@@ -0,0 +1,83 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A (cold) publisher of {@link MatrixChunk matrix chunks}.
+ * <p>
+ * Each subscription runs the producer on a separate thread, under the deadline of the query. The chunks are
+ * buffered in a bounded buffer; the producer blocks when the buffer is full, until the subscriber requests
+ * more chunks (or the deadline expires). This way, the producer and the subscriber work in parallel, and the
+ * memory used by a stream is bounded by the size of the buffer, not by the size of the result.
+ */
+final class MatrixPublisher implements Flow.Publisher<MatrixChunk> {
+
+    static final int DEFAULT_BUFFER_SIZE = 16;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Metrics Stream " + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Duration timeOut;
+    private final Consumer<Consumer<Matrix>> producer;
+
+    /**
+     * Creates a publisher.
+     *
+     * @param timeOut  the maximum duration of the producer
+     * @param producer the producer, which receives a consumer for the matrixes it produces
+     * @return a non-null instance
+     */
+    static MatrixPublisher create(Duration timeOut, Consumer<Consumer<Matrix>> producer) {
+        return new MatrixPublisher(timeOut, producer);
+    }
+
+    private MatrixPublisher(Duration timeOut, Consumer<Consumer<Matrix>> producer) {
+        requireNonNull(timeOut);
+        requireNonNull(producer);
+        this.timeOut = timeOut;
+        this.producer = producer;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MatrixChunk> subscriber) {
+        requireNonNull(subscriber);
+        SubmissionPublisher<MatrixChunk> publisher = new SubmissionPublisher<>(EXECUTOR, DEFAULT_BUFFER_SIZE);
+        publisher.subscribe(subscriber);
+        EXECUTOR.execute(() -> {
+            try (Deadline deadline = Deadline.start(timeOut)) {
+                producer.accept(matrix -> MatrixChunk.split(matrix, MatrixChunk.DEFAULT_SIZE, chunk -> {
+                    if (!publisher.hasSubscribers()) throw new QueryTimeoutException("Query was cancelled");
+                    long remaining = deadline.getRemaining().toNanos();
+                    if (publisher.offer(chunk, remaining, TimeUnit.NANOSECONDS, null) < 0) {
+                        Deadline.check();
+                        throw new QueryTimeoutException("Query was cancelled");
+                    }
+                }));
+                publisher.close();
+            } catch (Throwable e) {
+                publisher.closeExceptionally(e);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", MatrixPublisher.class.getSimpleName() + "[", "]")
+                .add("timeOut=" + timeOut)
+                .toString();
+    }
+}
@@ -152,6 +152,23 @@ public class Metric extends NamedIdentityAware<String> implements Comparable<Met
         return copy;
     }
 
+    /**
+     * Creates a new metric with an additional label (or a different value for an existing label).
+     *
+     * @param name  the name of the label
+     * @param value the value of the label
+     * @return a non-null instance
+     */
+    public Metric withLabel(String name, String value) {
+        requireNotEmpty(name);
+        requireNonNull(value);
+        Map<String, String> newLabels = new HashMap<>(labels);
+        newLabels.put(name, value);
+        Metric copy = new Metric(getName(), newLabels, null);
+        copy.update(type, group, displayName, getDescription());
+        return copy;
+    }
+
     /**
      * Returns the group for the metric.
      *
@@ -247,7 +264,8 @@ public class Metric extends NamedIdentityAware<String> implements Comparable<Met
 
     @Override
     public int compareTo(Metric o) {
-        return getId().compareTo(o.getId());
+        int comparison = getId().compareTo(o.getId());
+        return comparison != 0 ? comparison : hash.compareTo(o.hash);
     }
 
     @Override
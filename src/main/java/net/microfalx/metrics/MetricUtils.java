@@ -4,7 +4,7 @@ import net.microfalx.lang.ClassUtils;
 import net.microfalx.lang.IdGenerator;
 
 import java.time.Duration;
-import java.util.Collection;
+import java.util.*;
 
 import static java.time.Duration.ofSeconds;
 
@@ -21,7 +21,7 @@ public class MetricUtils {
     static SeriesStore create() {
         Collection<SeriesStore> seriesStores = ClassUtils.resolveProviderInstances(SeriesStore.class);
         if (seriesStores.isEmpty()) throw new IllegalStateException("A series store implementation cannot be provided");
-        return seriesStores.iterator().next();
+        return AbstractSeriesStore.register(seriesStores.iterator().next());
     }
 
     static SeriesStore getDefault() {
@@ -74,6 +74,115 @@ public class MetricUtils {
         return ofSeconds(seconds);
     }
 
+    /**
+     * Rounds the duration at 5s, 60s or 5min (like {@link #round(Duration)}), but never below the original
+     * duration and never to zero.
+     *
+     * @param duration the original duration
+     * @return the rounded duration
+     */
+    public static Duration roundUp(Duration duration) {
+        Duration rounded = round(duration);
+        if (rounded.compareTo(duration) >= 0 && !rounded.isZero()) return rounded;
+        long seconds = duration.toSeconds();
+        long granularity = seconds < 60 ? 5 : (seconds < 300 ? 60 : 300);
+        return round(rounded.plusSeconds(granularity));
+    }
+
+    /**
+     * Returns the step used to read the stores for a query.
+     * <p>
+     * The step of the query is increased (if needed) to not return more points than the maximum number of points,
+     * when the query provides one.
+     *
+     * @param query the query
+     * @return a non-null instance
+     */
+    static Duration getStep(Query query) {
+        Duration step = query.getStep();
+        if (!query.hasMaxPoints()) return step;
+        Duration duration = Duration.between(query.getStartTime(), query.getEndTime());
+        Duration minimumStep = roundUp(duration.dividedBy(query.getMaxPoints()));
+        return step.compareTo(minimumStep) < 0 ? minimumStep : step;
+    }
+
+    /**
+     * Merges lists of values, each one sorted by timestamp, into one list sorted by timestamp.
+     * <p>
+     * The merge is done in one pass (k-way merge). Values with the same timestamp are kept in the order
+     * of the lists. Lists which are not sorted are sorted (as a copy) before the merge.
+     *
+     * @param values the lists of values
+     * @return a non-null instance
+     */
+    static List<Value> merge(List<List<Value>> values) {
+        return merge(values, false);
+    }
+
+    /**
+     * Merges lists of values, each one sorted by timestamp, into one list sorted by timestamp.
+     * <p>
+     * When duplicates are removed, only the first value (in the order of the lists) is kept for a timestamp.
+     *
+     * @param values   the lists of values
+     * @param distinct {@code true} to keep only one value per timestamp, {@code false} to keep all values
+     * @return a non-null instance
+     */
+    static List<Value> merge(List<List<Value>> values, boolean distinct) {
+        int size = 0;
+        List<List<Value>> sortedValues = new ArrayList<>(values.size());
+        for (List<Value> list : values) {
+            if (list.isEmpty()) continue;
+            sortedValues.add(isSorted(list) ? list : sort(list));
+            size += list.size();
+        }
+        List<Value> mergedValues = new ArrayList<>(size);
+        if (sortedValues.size() == 1 && !distinct) {
+            mergedValues.addAll(sortedValues.get(0));
+            return mergedValues;
+        }
+        int[] positions = new int[sortedValues.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<>(sortedValues.size(), (i1, i2) -> {
+            int comparison = Long.compare(sortedValues.get(i1).get(positions[i1]).getTimestamp(),
+                    sortedValues.get(i2).get(positions[i2]).getTimestamp());
+            return comparison != 0 ? comparison : Integer.compare(i1, i2);
+        });
+        for (int i = 0; i < sortedValues.size(); i++) {
+            heap.add(i);
+        }
+        while (!heap.isEmpty()) {
+            int index = heap.poll();
+            List<Value> list = sortedValues.get(index);
+            Value value = list.get(positions[index]++);
+            if (!distinct || mergedValues.isEmpty() || mergedValues.get(mergedValues.size() - 1).getTimestamp() != value.getTimestamp()) {
+                mergedValues.add(value);
+            }
+            if (positions[index] < list.size()) heap.add(index);
+        }
+        return mergedValues;
+    }
+
+    /**
+     * Returns whether the values are sorted by timestamp.
+     *
+     * @param values the values
+     * @return {@code true} if sorted, {@code false} otherwise
+     */
+    static boolean isSorted(List<Value> values) {
+        long previous = Long.MIN_VALUE;
+        for (Value value : values) {
+            if (value.getTimestamp() < previous) return false;
+            previous = value.getTimestamp();
+        }
+        return true;
+    }
+
+    private static List<Value> sort(List<Value> values) {
+        List<Value> sortedValues = new ArrayList<>(values);
+        sortedValues.sort(Comparator.comparing(Value::getTimestamp));
+        return sortedValues;
+    }
+
     /**
      * Returns the id generator for metrics objects.
      *
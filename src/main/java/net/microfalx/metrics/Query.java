@@ -2,8 +2,11 @@ package net.microfalx.metrics;
 
 import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.Objects;
+import java.util.StringJoiner;
 
 import static java.time.Duration.ofSeconds;
+import static net.microfalx.lang.ArgumentUtils.requireBounded;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
 import static net.microfalx.lang.ArgumentUtils.requireNotEmpty;
 import static net.microfalx.lang.ExceptionUtils.rethrowExceptionAndReturn;
@@ -17,12 +20,19 @@ import static net.microfalx.lang.StringUtils.defaultIfEmpty;
  */
 public final class Query implements Cloneable {
 
+    /**
+     * The default maximum number of points (per time-series) used to select the step.
+     */
+    public static final int DEFAULT_MAX_POINTS = 50;
+
     private final String type;
     private final String text;
     private ZonedDateTime startTime;
     private ZonedDateTime endTime;
     private Duration step;
     private Duration timeOut = ofSeconds(30);
+    private int maxPoints;
+    private boolean instant;
 
     /**
      * Creates an empty query.
@@ -123,16 +133,17 @@ public final class Query implements Cloneable {
      * Returns the steps between returned points.
      * <p>
      * The step represents the aggregation interval. If not provided, it will be selected based on the time interval
-     * to not return more than 50 steps per time interval.
+     * to not return more than {@link #getMaxPoints()} steps per time interval. A provided step is returned as is;
+     * repositories increase it (if needed) when a {@link #withMaxPoints(int) maximum number of points} was provided.
+     * <p>
+     * Selected steps are aligned at 5s, 60s or 5min (see {@link MetricUtils#roundUp(Duration)}).
      *
      * @return a non-null instance
      */
     public Duration getStep() {
-        if (step == null) {
-            Duration duration = Duration.between(getStartTime(), getEndTime());
-            return MetricUtils.round(duration.dividedBy(50));
-        }
-        return step;
+        if (step != null) return step;
+        Duration duration = Duration.between(getStartTime(), getEndTime());
+        return MetricUtils.roundUp(duration.dividedBy(getMaxPoints()));
     }
 
     /**
@@ -148,6 +159,64 @@ public final class Query implements Cloneable {
         return copy;
     }
 
+    /**
+     * Returns the maximum number of points (per time-series) returned by this query.
+     *
+     * @return a positive integer
+     */
+    public int getMaxPoints() {
+        return maxPoints > 0 ? maxPoints : DEFAULT_MAX_POINTS;
+    }
+
+    /**
+     * Returns whether a maximum number of points was provided.
+     *
+     * @return {@code true} if provided, {@code false} if the default maximum applies
+     */
+    boolean hasMaxPoints() {
+        return maxPoints > 0;
+    }
+
+    /**
+     * Changes the maximum number of points (per time-series) returned by this query.
+     * <p>
+     * Repositories use it to select (or increase a provided) step, so the size of the result is bounded regardless
+     * of the time interval.
+     *
+     * @param maxPoints the maximum number of points
+     * @return a new instance with a different maximum number of points
+     */
+    public Query withMaxPoints(int maxPoints) {
+        requireBounded(maxPoints, 1, Integer.MAX_VALUE);
+        Query copy = copy();
+        copy.maxPoints = maxPoints;
+        return copy;
+    }
+
+    /**
+     * Returns whether this is an instant query.
+     * <p>
+     * An instant query returns {@link Result.Type#VECTOR vectors}, the most recent value (at the end time)
+     * of each selected time-series, instead of matrixes.
+     *
+     * @return {@code true} for an instant query, {@code false} for a range query
+     */
+    public boolean isInstant() {
+        return instant;
+    }
+
+    /**
+     * Changes whether this is an instant query.
+     *
+     * @param instant {@code true} for an instant query, {@code false} for a range query
+     * @return a new instance
+     */
+    public Query withInstant(boolean instant) {
+        Query copy = copy();
+        copy.instant = instant;
+        return copy;
+    }
+
     /**
      * Returns the execution timeout for this query.
      *
@@ -170,6 +239,40 @@ public final class Query implements Cloneable {
         return copy;
     }
 
+    /**
+     * Returns whether two queries produce the same result.
+     * <p>
+     * The timeout is not part of the identity of a query, it only limits how long the caller waits for the result.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Query query = (Query) o;
+        return maxPoints == query.maxPoints && instant == query.instant && type.equals(query.type)
+                && text.equals(query.text) && Objects.equals(startTime, query.startTime)
+                && Objects.equals(endTime, query.endTime) && Objects.equals(step, query.step);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, text, startTime, endTime, step, maxPoints, instant);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Query.class.getSimpleName() + "[", "]")
+                .add("type='" + type + "'")
+                .add("text='" + text + "'")
+                .add("startTime=" + startTime)
+                .add("endTime=" + endTime)
+                .add("step=" + step)
+                .add("timeOut=" + timeOut)
+                .add("maxPoints=" + maxPoints)
+                .add("instant=" + instant)
+                .toString();
+    }
+
     private Query copy() {
         try {
             return (Query) clone();
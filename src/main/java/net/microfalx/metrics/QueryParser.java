@@ -0,0 +1,287 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * Parses a query (a subset of PromQL) into a {@link QueryPlan}.
+ * <p>
+ * The following expressions are supported:
+ * <ul>
+ *     <li>selectors: {@code name}, {@code name{label="value"}}, {@code {__name__=~"name.*"}} with the
+ *     {@code =}, {@code !=}, {@code =~} and {@code !~} matchers</li>
+ *     <li>range functions: {@code rate}, {@code avg_over_time}, {@code sum_over_time}, {@code min_over_time},
+ *     {@code max_over_time} and {@code count_over_time}, applied on a range selector like {@code name[5m]}</li>
+ *     <li>aggregations: {@code sum}, {@code avg}, {@code min}, {@code max} and {@code count}, optionally
+ *     grouped by labels: {@code sum by (label) (expression)} or {@code sum(expression) by (label)}</li>
+ *     <li>top time-series: {@code topk(10, expression)} keeps the 10 time-series with the highest maximum over
+ *     the interval of the query; the ranking can be changed with a third argument ({@code sum}, {@code avg},
+ *     {@code min}, {@code max} or {@code count}), like {@code topk(10, expression, avg)}; selectors are ranked on
+ *     their raw values, other expressions on their values per step (see {@link QueryPlan.Top})</li>
+ * </ul>
+ */
+final class QueryParser {
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d|w)");
+    private static final String TOP = "topk";
+
+    private final String text;
+    private int position;
+
+    /**
+     * Parses a query.
+     *
+     * @param text the query text
+     * @return a non-null instance
+     * @throws QueryException if the query is invalid
+     */
+    static QueryPlan parse(String text) {
+        requireNonNull(text);
+        QueryParser parser = new QueryParser(text);
+        QueryPlan plan = parser.parseExpression();
+        parser.skipWhitespace();
+        if (!parser.isEnd()) throw parser.error("Unexpected '" + parser.peek() + "'");
+        return plan;
+    }
+
+    private QueryParser(String text) {
+        this.text = text;
+    }
+
+    private QueryPlan parseExpression() {
+        skipWhitespace();
+        if (peek() == '{') return parseSelector(null);
+        String identifier = parseIdentifier();
+        skipWhitespace();
+        Aggregation.Type aggregationType = getAggregationType(identifier);
+        if (aggregationType != null && (peek() == '(' || lookingAt("by"))) {
+            return parseAggregation(aggregationType);
+        }
+        if (TOP.equals(identifier) && peek() == '(') {
+            return parseTop();
+        }
+        QueryPlan.Function function = getFunction(identifier);
+        if (function != null && peek() == '(') {
+            return parseFunction(function);
+        }
+        return parseSelector(identifier);
+    }
+
+    private QueryPlan parseAggregation(Aggregation.Type type) {
+        List<String> groupBy = new ArrayList<>();
+        if (lookingAt("by")) groupBy = parseGroupBy();
+        expect('(');
+        QueryPlan plan = parseExpression();
+        expect(')');
+        skipWhitespace();
+        if (groupBy.isEmpty() && lookingAt("by")) groupBy = parseGroupBy();
+        return new QueryPlan.Aggregate(type, groupBy, plan);
+    }
+
+    private QueryPlan parseTop() {
+        expect('(');
+        int count = parseInteger();
+        expect(',');
+        QueryPlan plan = parseExpression();
+        skipWhitespace();
+        Aggregation.Type type = Aggregation.Type.MAX;
+        if (peek() == ',') {
+            position++;
+            type = getAggregationType(parseIdentifier());
+            if (type == null) throw error("Expected a ranking (sum, avg, min, max or count)");
+        }
+        expect(')');
+        return new QueryPlan.Top(count, type, plan);
+    }
+
+    private List<String> parseGroupBy() {
+        position += 2;
+        expect('(');
+        List<String> labels = new ArrayList<>();
+        skipWhitespace();
+        while (peek() != ')') {
+            labels.add(parseIdentifier());
+            skipWhitespace();
+            if (peek() == ',') position++;
+            skipWhitespace();
+        }
+        expect(')');
+        skipWhitespace();
+        return labels;
+    }
+
+    private QueryPlan parseFunction(QueryPlan.Function function) {
+        expect('(');
+        skipWhitespace();
+        QueryPlan.Selector selector = parseSelector(peek() == '{' ? null : parseIdentifier());
+        expect('[');
+        Duration range = parseDuration();
+        expect(']');
+        expect(')');
+        return new QueryPlan.RangeFunction(function, selector, range);
+    }
+
+    private QueryPlan.Selector parseSelector(String name) {
+        List<QueryPlan.Matcher> matchers = new ArrayList<>();
+        if (name != null) matchers.add(new QueryPlan.Matcher(QueryPlan.Matcher.NAME_LABEL, QueryPlan.Operator.EQUAL, name));
+        skipWhitespace();
+        if (peek() == '{') {
+            position++;
+            skipWhitespace();
+            while (peek() != '}') {
+                String label = parseIdentifier();
+                QueryPlan.Operator operator = parseOperator();
+                String value = parseString();
+                matchers.add(new QueryPlan.Matcher(label, operator, value));
+                skipWhitespace();
+                if (peek() == ',') position++;
+                skipWhitespace();
+            }
+            expect('}');
+        }
+        if (matchers.isEmpty()) throw error("A selector requires at least one matcher");
+        skipWhitespace();
+        return new QueryPlan.Selector(matchers);
+    }
+
+    private QueryPlan.Operator parseOperator() {
+        skipWhitespace();
+        if (text.startsWith("=~", position)) {
+            position += 2;
+            return QueryPlan.Operator.MATCH;
+        } else if (text.startsWith("!~", position)) {
+            position += 2;
+            return QueryPlan.Operator.NOT_MATCH;
+        } else if (text.startsWith("!=", position)) {
+            position += 2;
+            return QueryPlan.Operator.NOT_EQUAL;
+        } else if (text.startsWith("=", position)) {
+            position++;
+            return QueryPlan.Operator.EQUAL;
+        } else {
+            throw error("Expected a label matcher");
+        }
+    }
+
+    private String parseString() {
+        skipWhitespace();
+        char quote = peek();
+        if (quote != '"' && quote != '\'') throw error("Expected a string");
+        position++;
+        StringBuilder builder = new StringBuilder();
+        while (!isEnd() && peek() != quote) {
+            char c = text.charAt(position++);
+            if (c == '\\' && !isEnd()) c = text.charAt(position++);
+            builder.append(c);
+        }
+        expect(quote);
+        return builder.toString();
+    }
+
+    private String parseIdentifier() {
+        skipWhitespace();
+        int start = position;
+        while (!isEnd() && isIdentifierPart(peek(), position == start)) position++;
+        if (start == position) throw error("Expected an identifier");
+        return text.substring(start, position);
+    }
+
+    private int parseInteger() {
+        skipWhitespace();
+        int start = position;
+        while (!isEnd() && Character.isDigit(peek())) position++;
+        if (start == position) throw error("Expected a number");
+        try {
+            return Integer.parseInt(text.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private Duration parseDuration() {
+        skipWhitespace();
+        Matcher matcher = DURATION.matcher(text);
+        matcher.region(position, text.length());
+        if (!matcher.lookingAt()) throw error("Expected a duration");
+        position = matcher.end();
+        try {
+            long amount = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms":
+                    return Duration.ofMillis(amount);
+                case "s":
+                    return Duration.ofSeconds(amount);
+                case "m":
+                    return Duration.ofMinutes(amount);
+                case "h":
+                    return Duration.ofHours(amount);
+                case "d":
+                    return Duration.ofDays(amount);
+                default:
+                    return Duration.ofDays(Math.multiplyExact(7, amount));
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw error("Invalid duration");
+        }
+    }
+
+    private boolean lookingAt(String keyword) {
+        return text.startsWith(keyword, position) && (position + keyword.length() == text.length()
+                || !isIdentifierPart(text.charAt(position + keyword.length()), false));
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (peek() != c) throw error("Expected '" + c + "'");
+        position++;
+    }
+
+    private char peek() {
+        return isEnd() ? 0 : text.charAt(position);
+    }
+
+    private boolean isEnd() {
+        return position >= text.length();
+    }
+
+    private void skipWhitespace() {
+        while (!isEnd() && Character.isWhitespace(text.charAt(position))) position++;
+    }
+
+    private QueryException error(String message) {
+        return new QueryException(message + " at position " + position + " in '" + text + "'");
+    }
+
+    private static boolean isIdentifierPart(char c, boolean first) {
+        return Character.isLetter(c) || c == '_' || c == ':' || (!first && Character.isDigit(c));
+    }
+
+    private static Aggregation.Type getAggregationType(String identifier) {
+        switch (identifier) {
+            case "sum":
+                return Aggregation.Type.SUM;
+            case "avg":
+                return Aggregation.Type.AVG;
+            case "min":
+                return Aggregation.Type.MIN;
+            case "max":
+                return Aggregation.Type.MAX;
+            case "count":
+                return Aggregation.Type.COUNT;
+            default:
+                return null;
+        }
+    }
+
+    private static QueryPlan.Function getFunction(String identifier) {
+        for (QueryPlan.Function function : QueryPlan.Function.values()) {
+            if (function.name().equalsIgnoreCase(identifier)) return function;
+        }
+        return null;
+    }
+}
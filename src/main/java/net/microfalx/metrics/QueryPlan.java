@@ -0,0 +1,471 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.Collections.unmodifiableList;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * An execution plan for a query, created by {@link QueryParser}.
+ * <p>
+ * A plan is a tree of operations (selectors, range functions, aggregations and top selections) which is executed
+ * against a {@link SeriesStore}. All operations produce one {@link Matrix} per resulting time-series, with one value
+ * per step. Time-series are produced one at a time, so they can be streamed to the caller.
+ * <p>
+ * Operations check the {@link Deadline} of the current thread while they iterate over metrics and values.
+ */
+abstract class QueryPlan {
+
+    /**
+     * Executes the plan.
+     *
+     * @param context the execution context
+     * @return a non-null instance
+     */
+    final Collection<Matrix> execute(Context context) {
+        Collection<Matrix> matrixes = new ArrayList<>();
+        execute(context, matrixes::add);
+        return matrixes;
+    }
+
+    /**
+     * Executes the plan, passing each resulting time-series to a consumer as soon as it is available.
+     *
+     * @param context  the execution context
+     * @param consumer the consumer of time-series
+     */
+    abstract void execute(Context context, Consumer<Matrix> consumer);
+
+    /**
+     * The context of an execution: the store and the time interval.
+     */
+    static final class Context {
+
+        private final SeriesStore store;
+        private final long start;
+        private final long end;
+        private final long step;
+
+        Context(SeriesStore store, long start, long end, long step) {
+            requireNonNull(store);
+            if (step <= 0) throw new IllegalArgumentException("Step must be positive");
+            this.store = store;
+            this.step = step;
+            this.start = Math.floorDiv(start, step) * step;
+            this.end = end;
+        }
+
+        SeriesStore getStore() {
+            return store;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        long getStep() {
+            return step;
+        }
+    }
+
+    /**
+     * Selects the metrics matching a set of label matchers.
+     */
+    static final class Selector extends QueryPlan {
+
+        private final List<Matcher> matchers;
+
+        Selector(List<Matcher> matchers) {
+            this.matchers = unmodifiableList(new ArrayList<>(matchers));
+        }
+
+        List<Matcher> getMatchers() {
+            return matchers;
+        }
+
+        boolean matches(Metric metric) {
+            for (Matcher matcher : matchers) {
+                if (!matcher.matches(metric)) return false;
+            }
+            return true;
+        }
+
+        Collection<Metric> select(SeriesStore store) {
+            Collection<Metric> metrics = new ArrayList<>();
+            int iteration = 0;
+            for (Metric metric : store.getMetrics()) {
+                Deadline.check(iteration++);
+                if (matches(metric)) metrics.add(metric);
+            }
+            return metrics;
+        }
+
+        /**
+         * Returns, for each step, the average of the values in the step.
+         * <p>
+         * The values are read aggregated by the store, so rollups are used when available.
+         */
+        @Override
+        void execute(Context context, Consumer<Matrix> consumer) {
+            execute(context, select(context.getStore()), consumer);
+        }
+
+        /**
+         * Returns, for each step, the average of the values in the step, for a subset of the selected metrics.
+         *
+         * @param context  the execution context
+         * @param metrics  the metrics
+         * @param consumer the consumer of time-series
+         */
+        void execute(Context context, Collection<Metric> metrics, Consumer<Matrix> consumer) {
+            Duration step = Duration.ofMillis(context.getStep());
+            for (Metric metric : metrics) {
+                Deadline.check();
+                Series series = context.getStore().get(metric, Instant.ofEpochMilli(context.getStart()),
+                        Instant.ofEpochMilli(context.getEnd()), step, Aggregation.Type.AVG);
+                if (!series.isEmpty()) consumer.accept(Matrix.create(metric, series));
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ", "{", "}");
+            matchers.forEach(matcher -> joiner.add(matcher.toString()));
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * A function applied, at each step, over the values of a range (window) which ends at the step.
+     */
+    static final class RangeFunction extends QueryPlan {
+
+        private final Function function;
+        private final Selector selector;
+        private final long range;
+
+        RangeFunction(Function function, Selector selector, Duration range) {
+            requireNonNull(function);
+            requireNonNull(selector);
+            requireNonNull(range);
+            if (range.toMillis() <= 0) throw new QueryException("Range must be positive");
+            this.function = function;
+            this.selector = selector;
+            this.range = range.toMillis();
+        }
+
+        @Override
+        void execute(Context context, Consumer<Matrix> consumer) {
+            for (Metric metric : selector.select(context.getStore())) {
+                Deadline.check();
+                Series series = context.getStore().get(metric, Instant.ofEpochMilli(context.getStart() - range),
+                        Instant.ofEpochMilli(context.getEnd()));
+                List<Value> values = evaluate(metric, series.getValues(), context);
+                if (!values.isEmpty()) consumer.accept(Matrix.create(metric, values));
+            }
+        }
+
+        private List<Value> evaluate(Metric metric, List<Value> values, Context context) {
+            List<Value> result = new ArrayList<>();
+            int first = 0;
+            int last = 0;
+            int iteration = 0;
+            for (long timestamp = context.getStart(); timestamp <= context.getEnd(); timestamp += context.getStep()) {
+                Deadline.check(iteration++);
+                while (last < values.size() && values.get(last).getTimestamp() <= timestamp) last++;
+                while (first < last && values.get(first).getTimestamp() <= timestamp - range) first++;
+                if (first == last) continue;
+                double value = function.apply(metric, values.subList(first, last), range);
+                if (!Double.isNaN(value)) result.add(Value.create(timestamp, value));
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return function.name().toLowerCase() + "(" + selector + "[" + Duration.ofMillis(range) + "])";
+        }
+    }
+
+    /**
+     * Aggregates the time-series produced by another plan, optionally grouped by labels.
+     * <p>
+     * Without labels, all the time-series (whatever their name) are aggregated in a single time-series.
+     */
+    static final class Aggregate extends QueryPlan {
+
+        private static final Metric UNGROUPED = Metric.create();
+
+        private final Aggregation.Type type;
+        private final List<String> groupBy;
+        private final QueryPlan plan;
+
+        Aggregate(Aggregation.Type type, List<String> groupBy, QueryPlan plan) {
+            requireNonNull(type);
+            requireNonNull(groupBy);
+            requireNonNull(plan);
+            this.type = type;
+            this.groupBy = unmodifiableList(new ArrayList<>(groupBy));
+            this.plan = plan;
+        }
+
+        @Override
+        void execute(Context context, Consumer<Matrix> consumer) {
+            Aggregation aggregation = new Aggregation().setType(type).setStep(Duration.ofMillis(context.getStep()));
+            if (!groupBy.isEmpty()) aggregation.setGroupBy(groupBy);
+            plan.execute(context, matrix -> {
+                if (groupBy.isEmpty()) {
+                    aggregation.add(UNGROUPED, matrix.getValues());
+                } else {
+                    aggregation.add(matrix);
+                }
+            });
+            aggregation.toMatrixes().forEach(consumer);
+        }
+
+        @Override
+        public String toString() {
+            return type.name().toLowerCase() + (groupBy.isEmpty() ? "" : " by (" + String.join(", ", groupBy) + ")")
+                    + " (" + plan + ")";
+        }
+    }
+
+    /**
+     * Keeps the time-series produced by another plan with the highest statistic (maximum, average, etc.) over the
+     * time interval.
+     * <p>
+     * When the plan is a selector, the metrics are ranked by the store (from precomputed statistics) and only the
+     * winning series are read. Otherwise, the time-series are ranked as they are produced and only the winning ones
+     * are kept, in a bounded heap.
+     * <p>
+     * The two paths rank on different values: a selector is ranked on its raw values (for example, the maximum
+     * of all samples), while other plans are ranked on their values per step (for example, the maximum of the
+     * step averages), which are the values returned. The order is the same for {@code avg} (and, for regular
+     * samples, {@code sum} and {@code count}), but {@code max} and {@code min} rank a selector by its extreme
+     * samples, which might not be visible in the returned (averaged) values.
+     */
+    static final class Top extends QueryPlan {
+
+        private final int count;
+        private final Aggregation.Type type;
+        private final QueryPlan plan;
+
+        Top(int count, Aggregation.Type type, QueryPlan plan) {
+            requireNonNull(type);
+            requireNonNull(plan);
+            if (count <= 0) throw new QueryException("The number of time-series must be positive");
+            if (!RollupStore.isSupported(type)) throw new QueryException("Unsupported ranking: " + type);
+            this.count = count;
+            this.type = type;
+            this.plan = plan;
+        }
+
+        @Override
+        void execute(Context context, Consumer<Matrix> consumer) {
+            if (plan instanceof Selector) {
+                Selector selector = (Selector) plan;
+                Map<Metric, Double> top = context.getStore().getTop(selector::matches, Instant.ofEpochMilli(context.getStart()),
+                        Instant.ofEpochMilli(context.getEnd()), type, count);
+                selector.execute(context, top.keySet(), consumer);
+            } else {
+                BoundedHeap<Matrix> heap = new BoundedHeap<>(count);
+                plan.execute(context, matrix -> heap.add(matrix, getStatistic(matrix)));
+                heap.toList().forEach(consumer);
+            }
+        }
+
+        private double getStatistic(Matrix matrix) {
+            switch (type) {
+                case SUM:
+                    return matrix.getSum();
+                case MIN:
+                    return matrix.getMinimum().orElse(Double.NaN);
+                case MAX:
+                    return matrix.getMaximum().orElse(Double.NaN);
+                case AVG:
+                    return matrix.getAverage().orElse(Double.NaN);
+                case COUNT:
+                    return matrix.getCount();
+                default:
+                    throw new IllegalStateException("Unhandled type: " + type);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "topk(" + count + ", " + plan + ", " + type.name().toLowerCase() + ")";
+        }
+    }
+
+    /**
+     * A label matcher.
+     */
+    static final class Matcher {
+
+        static final String NAME_LABEL = "__name__";
+
+        private final String label;
+        private final Operator operator;
+        private final String value;
+        private final Pattern pattern;
+
+        Matcher(String label, Operator operator, String value) {
+            requireNonNull(label);
+            requireNonNull(operator);
+            requireNonNull(value);
+            this.label = label;
+            this.operator = operator;
+            this.value = value;
+            try {
+                this.pattern = operator.isRegex() ? Pattern.compile(value) : null;
+            } catch (PatternSyntaxException e) {
+                throw new QueryException("Invalid regular expression for label '" + label + "': " + value, e);
+            }
+        }
+
+        boolean matches(Metric metric) {
+            String labelValue = NAME_LABEL.equals(label) ? metric.getName() : metric.getLabel(label);
+            if (labelValue == null) labelValue = "";
+            switch (operator) {
+                case EQUAL:
+                    return value.equals(labelValue);
+                case NOT_EQUAL:
+                    return !value.equals(labelValue);
+                case MATCH:
+                    return pattern.matcher(labelValue).matches();
+                case NOT_MATCH:
+                    return !pattern.matcher(labelValue).matches();
+                default:
+                    throw new IllegalStateException("Unhandled operator: " + operator);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return label + operator.getSymbol() + "\"" + value + "\"";
+        }
+    }
+
+    /**
+     * The operators supported by label matchers.
+     */
+    enum Operator {
+
+        EQUAL("="),
+        NOT_EQUAL("!="),
+        MATCH("=~"),
+        NOT_MATCH("!~");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        String getSymbol() {
+            return symbol;
+        }
+
+        boolean isRegex() {
+            return this == MATCH || this == NOT_MATCH;
+        }
+    }
+
+    /**
+     * The functions supported over ranges.
+     */
+    enum Function {
+
+        /**
+         * The per-second rate of increase of a counter.
+         * <p>
+         * Counters are stored as deltas, so the rate is the sum of the deltas divided by the range. For other
+         * metrics, the increase is calculated from consecutive values (a decrease is considered a reset).
+         */
+        RATE {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                double increase = 0;
+                if (metric.getType() == Metric.Type.COUNTER) {
+                    for (Value value : values) {
+                        increase += value.asDouble();
+                    }
+                } else {
+                    if (values.size() < 2) return Double.NaN;
+                    for (int index = 1; index < values.size(); index++) {
+                        double current = values.get(index).asDouble();
+                        double previous = values.get(index - 1).asDouble();
+                        increase += current >= previous ? current - previous : current;
+                    }
+                }
+                return increase / (range / 1000d);
+            }
+        },
+
+        AVG_OVER_TIME {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                return SUM_OVER_TIME.apply(metric, values, range) / values.size();
+            }
+        },
+
+        SUM_OVER_TIME {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                double sum = 0;
+                for (Value value : values) {
+                    sum += value.asDouble();
+                }
+                return sum;
+            }
+        },
+
+        MIN_OVER_TIME {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                double minimum = Double.MAX_VALUE;
+                for (Value value : values) {
+                    minimum = Math.min(minimum, value.asDouble());
+                }
+                return minimum;
+            }
+        },
+
+        MAX_OVER_TIME {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                double maximum = -Double.MAX_VALUE;
+                for (Value value : values) {
+                    maximum = Math.max(maximum, value.asDouble());
+                }
+                return maximum;
+            }
+        },
+
+        COUNT_OVER_TIME {
+            @Override
+            double apply(Metric metric, List<Value> values, long range) {
+                return values.size();
+            }
+        };
+
+        /**
+         * Applies the function over the values of a range.
+         *
+         * @param metric the metric
+         * @param values the values, not empty
+         * @param range  the range, in milliseconds
+         * @return the value, {@link Double#NaN} if the function cannot be calculated
+         */
+        abstract double apply(Metric metric, List<Value> values, long range);
+    }
+}
@@ -0,0 +1,15 @@
+package net.microfalx.metrics;
+
+/**
+ * An exception rose when a query runs past its {@link Query#getTimeOut() timeout} or it is cancelled.
+ */
+public class QueryTimeoutException extends QueryException {
+
+    public QueryTimeoutException(String message) {
+        super(message);
+    }
+
+    public QueryTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
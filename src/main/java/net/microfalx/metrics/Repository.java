@@ -1,5 +1,7 @@
 package net.microfalx.metrics;
 
+import java.util.concurrent.Flow;
+
 /**
  * A repository for metrics.
  * <p>
@@ -37,5 +39,25 @@ public interface Repository {
      */
     Result query(Query query);
 
+    /**
+     * Performs a query and streams the resulting matrixes, as chunks of values.
+     * <p>
+     * The query is executed when a subscriber subscribes (once per subscriber). The chunks are produced on a
+     * separate thread and buffered in a bounded buffer, so memory does not grow with the size of the result
+     * when the subscriber keeps up.
+     * <p>
+     * The default implementation executes the query and streams the result; repositories which can produce
+     * matrixes one by one should override this method.
+     *
+     * @param query the query
+     * @return a non-null instance
+     */
+    default Flow.Publisher<MatrixChunk> stream(Query query) {
+        return MatrixPublisher.create(query.getTimeOut(), consumer -> {
+            Result result = query(query);
+            if (!result.isSuccessful()) throw new QueryException(result.getMessage());
+            result.getMatrixes().forEach(consumer);
+        });
+    }
 
 }
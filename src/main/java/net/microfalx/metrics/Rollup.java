@@ -0,0 +1,90 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+import static java.time.Duration.*;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A rollup tier, which keeps pre-aggregated values (minimum, maximum, sum and count) for each step.
+ * <p>
+ * Rollups are maintained by a {@link SeriesStore} as values are added and each tier keeps its buckets
+ * only for its retention.
+ */
+public final class Rollup {
+
+    private final Duration step;
+    private final Duration retention;
+
+    /**
+     * Creates a rollup tier.
+     *
+     * @param step      the step of the buckets
+     * @param retention the retention of the buckets
+     * @return a non-null instance
+     */
+    public static Rollup create(Duration step, Duration retention) {
+        return new Rollup(step, retention);
+    }
+
+    /**
+     * Returns the default rollup tiers: 1 minute for 1 day, 5 minutes for 7 days and 1 hour for 30 days.
+     *
+     * @return a non-null instance
+     */
+    public static List<Rollup> defaults() {
+        return List.of(create(ofMinutes(1), ofDays(1)), create(ofMinutes(5), ofDays(7)),
+                create(ofHours(1), ofDays(30)));
+    }
+
+    private Rollup(Duration step, Duration retention) {
+        requireNonNull(step);
+        requireNonNull(retention);
+        if (step.toMillis() < 1000) throw new IllegalArgumentException("Step cannot be less than 1s");
+        if (retention.compareTo(step) < 0) throw new IllegalArgumentException("Retention cannot be less than the step");
+        this.step = step;
+        this.retention = retention;
+    }
+
+    /**
+     * Returns the step of the buckets.
+     *
+     * @return a non-null instance
+     */
+    public Duration getStep() {
+        return step;
+    }
+
+    /**
+     * Returns how long the buckets are kept.
+     *
+     * @return a non-null instance
+     */
+    public Duration getRetention() {
+        return retention;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Rollup rollup = (Rollup) o;
+        return step.equals(rollup.step) && retention.equals(rollup.retention);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(step, retention);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Rollup.class.getSimpleName() + "[", "]")
+                .add("step=" + step)
+                .add("retention=" + retention)
+                .toString();
+    }
+}
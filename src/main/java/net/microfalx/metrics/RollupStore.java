@@ -0,0 +1,338 @@
+package net.microfalx.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Holds the rollup tiers for all the metrics of a store.
+ * <p>
+ * Each tier keeps, for each metric, a ring of buckets (one bucket per step) with the minimum, maximum,
+ * sum and count of the values which fall in the bucket. The ring has enough buckets to cover the retention
+ * of the tier, so older buckets are reused. The ring is allocated in pages, as buckets are written, so metrics
+ * which are written rarely (or for a short time) hold only a few pages; the allocated pages are counted in the
+ * {@link #getEstimatedSize() estimated size}.
+ * <p>
+ * The tiers only receive the values added after they were enabled, so they only answer for intervals which start
+ * after that moment; older intervals are answered from the raw values.
+ */
+final class RollupStore {
+
+    private static final int MAXIMUM_BUCKETS = 100_000;
+    private static final int PAGE_SIZE = 64;
+    private static final int PAGE_OVERHEAD_SIZE = 5 * 16 + 32;
+    private static final int BUCKET_SIZE = 8 + 8 + 4 + 4 + 4;
+    private static final int METRIC_OVERHEAD_SIZE = 64;
+
+    private final List<Rollup> rollups;
+    private final Map<Metric, MetricRollups> metrics = new ConcurrentHashMap<>();
+    private final AtomicLong estimatedSize = new AtomicLong();
+    private final long coveredSince = System.currentTimeMillis();
+
+    RollupStore(Collection<Rollup> rollups) {
+        List<Rollup> sortedRollups = new ArrayList<>(new LinkedHashSet<>(rollups));
+        sortedRollups.sort(Comparator.comparing(Rollup::getStep));
+        this.rollups = unmodifiableList(sortedRollups);
+    }
+
+    /**
+     * Returns the rollup tiers, sorted by step.
+     *
+     * @return a non-null instance
+     */
+    List<Rollup> getRollups() {
+        return rollups;
+    }
+
+    /**
+     * Returns the rollups for a metric.
+     *
+     * @param metric the metric
+     * @return a non-null instance
+     */
+    MetricRollups getOrCreate(Metric metric) {
+        MetricRollups metricRollups = metrics.get(metric);
+        if (metricRollups != null) return metricRollups;
+        return metrics.computeIfAbsent(metric, m -> new MetricRollups(rollups, estimatedSize));
+    }
+
+    /**
+     * Removes the rollups of a metric.
+     *
+     * @param metric        the metric
+     * @param metricRollups the rollups, removed only if they are still the rollups of the metric
+     */
+    void remove(Metric metric, MetricRollups metricRollups) {
+        if (metrics.remove(metric, metricRollups)) estimatedSize.addAndGet(-metricRollups.getEstimatedSize());
+    }
+
+    /**
+     * Returns the estimated size of the rollups of all metrics.
+     *
+     * @return a positive integer
+     */
+    long getEstimatedSize() {
+        return estimatedSize.get();
+    }
+
+    /**
+     * Returns the estimated size of the rollups of a metric.
+     *
+     * @param metric the metric
+     * @return a positive integer
+     */
+    long getEstimatedSize(Metric metric) {
+        MetricRollups metricRollups = metrics.get(metric);
+        return metricRollups != null ? metricRollups.getEstimatedSize() : 0;
+    }
+
+    /**
+     * Adds a value to all tiers.
+     *
+     * @param metric the metric
+     * @param value  the value
+     */
+    void add(Metric metric, Value value) {
+        getOrCreate(metric).add(value);
+    }
+
+    /**
+     * Returns the aggregated series from the coarsest tier which can answer the request.
+     * <p>
+     * A tier can answer if its step divides the requested step, the interval starts on a bucket boundary (a partial
+     * first bucket would include values before the interval) and its retention covers the start of the interval,
+     * which must also be after the moment the tiers were enabled.
+     *
+     * @param metric the metric
+     * @param name   the name of the series
+     * @param from   the start of the interval (millis since epoch)
+     * @param to     the end of the interval (millis since epoch)
+     * @param step   the step (millis)
+     * @param type   the aggregation type
+     * @return the series, null if no tier can answer
+     */
+    Series get(Metric metric, String name, long from, long to, long step, Aggregation.Type type) {
+        if (!isSupported(type) || from < coveredSince) return null;
+        long now = System.currentTimeMillis();
+        for (int index = rollups.size() - 1; index >= 0; index--) {
+            Rollup rollup = rollups.get(index);
+            long rollupStep = rollup.getStep().toMillis();
+            if (rollupStep > step || step % rollupStep != 0 || from % rollupStep != 0) continue;
+            if (from < now - rollup.getRetention().toMillis()) continue;
+            MetricRollups metricRollups = metrics.get(metric);
+            List<Value> values = metricRollups != null ? metricRollups.get(index, from, to, step, type) : List.of();
+            return Series.create(name, values);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a statistic of the values within an interval, from the coarsest tier which can answer the request.
+     * <p>
+     * A tier can answer if its retention covers the start of the interval (which must also be after the moment
+     * the tiers were enabled) and the interval does not split its buckets (the interval starts on a bucket boundary
+     * and ends on a bucket boundary or in the future).
+     *
+     * @param metric the metric
+     * @param from   the start of the interval (millis since epoch)
+     * @param to     the end of the interval (millis since epoch)
+     * @param type   the aggregation type
+     * @return the statistic, null if no tier can answer
+     */
+    OptionalDouble getStatistic(Metric metric, long from, long to, Aggregation.Type type) {
+        if (!isSupported(type) || from < coveredSince) return null;
+        long now = System.currentTimeMillis();
+        for (int index = rollups.size() - 1; index >= 0; index--) {
+            Rollup rollup = rollups.get(index);
+            long rollupStep = rollup.getStep().toMillis();
+            if (from % rollupStep != 0 || (to < now && (to + 1) % rollupStep != 0)) continue;
+            if (from < now - rollup.getRetention().toMillis()) continue;
+            MetricRollups metricRollups = metrics.get(metric);
+            List<Value> values = metricRollups != null ? metricRollups.get(index, from, to, Long.MAX_VALUE, type) : List.of();
+            return values.isEmpty() ? OptionalDouble.empty() : OptionalDouble.of(values.get(0).asDouble());
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the rollups can aggregate values with a given type.
+     *
+     * @param type the aggregation type
+     * @return {@code true} if supported, {@code false} otherwise
+     */
+    static boolean isSupported(Aggregation.Type type) {
+        switch (type) {
+            case SUM:
+            case MIN:
+            case MAX:
+            case AVG:
+            case COUNT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Holds the buckets of all tiers for a metric.
+     */
+    static final class MetricRollups {
+
+        private final Buckets[] buckets;
+        private final AtomicLong storeSize;
+        private volatile long estimatedSize = METRIC_OVERHEAD_SIZE;
+
+        private MetricRollups(List<Rollup> rollups, AtomicLong storeSize) {
+            this.storeSize = storeSize;
+            buckets = new Buckets[rollups.size()];
+            for (int index = 0; index < buckets.length; index++) {
+                buckets[index] = new Buckets(rollups.get(index));
+            }
+            storeSize.addAndGet(estimatedSize);
+        }
+
+        /**
+         * Returns the estimated size of the buckets allocated for this metric.
+         *
+         * @return a positive integer
+         */
+        long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        synchronized void add(Value value) {
+            long allocated = 0;
+            for (Buckets bucket : buckets) {
+                allocated += bucket.add(value.getTimestamp(), value.getValue());
+            }
+            if (allocated > 0) {
+                estimatedSize += allocated;
+                storeSize.addAndGet(allocated);
+            }
+        }
+
+        synchronized List<Value> get(int index, long from, long to, long step, Aggregation.Type type) {
+            return buckets[index].get(from, to, step, type);
+        }
+    }
+
+    /**
+     * A ring of buckets for a tier, allocated in pages (of {@link #PAGE_SIZE} buckets) on the first write.
+     */
+    private static final class Buckets {
+
+        private final long step;
+        private final int capacity;
+        private final Page[] pages;
+        private long latest = Long.MIN_VALUE;
+
+        private Buckets(Rollup rollup) {
+            step = rollup.getStep().toMillis();
+            capacity = (int) Math.min(MAXIMUM_BUCKETS, Math.max(1, rollup.getRetention().toMillis() / step));
+            pages = new Page[(capacity + PAGE_SIZE - 1) / PAGE_SIZE];
+        }
+
+        /**
+         * Adds a value to its bucket.
+         *
+         * @param timestamp the timestamp of the value
+         * @param value     the value
+         * @return the estimated size of the page allocated for the bucket, 0 if no page was allocated
+         */
+        private long add(long timestamp, float value) {
+            long bucket = Math.floorDiv(timestamp, step);
+            if (latest != Long.MIN_VALUE && bucket <= latest - capacity) return 0;
+            int index = (int) Math.floorMod(bucket, (long) capacity);
+            long allocated = 0;
+            Page page = pages[index / PAGE_SIZE];
+            if (page == null) {
+                page = new Page();
+                pages[index / PAGE_SIZE] = page;
+                allocated = PAGE_OVERHEAD_SIZE + (long) PAGE_SIZE * BUCKET_SIZE;
+            }
+            page.add(index % PAGE_SIZE, bucket * step, value);
+            latest = Math.max(latest, bucket);
+            return allocated;
+        }
+
+        private List<Value> get(long from, long to, long targetStep, Aggregation.Type type) {
+            List<Value> values = new ArrayList<>();
+            if (latest == Long.MIN_VALUE) return values;
+            long firstBucket = Math.max(Math.floorDiv(from, step), latest - capacity + 1);
+            long lastBucket = Math.min(Math.floorDiv(to, step), latest);
+            long currentTarget = Long.MIN_VALUE;
+            double sum = 0;
+            float minimum = 0;
+            float maximum = 0;
+            long count = 0;
+            for (long bucket = firstBucket; bucket <= lastBucket; bucket++) {
+                int index = (int) Math.floorMod(bucket, (long) capacity);
+                Page page = pages[index / PAGE_SIZE];
+                int offset = index % PAGE_SIZE;
+                long start = bucket * step;
+                if (page == null || page.counts[offset] == 0 || page.starts[offset] != start) continue;
+                long target = Math.floorDiv(start, targetStep) * targetStep;
+                if (target != currentTarget) {
+                    if (count > 0) values.add(toValue(currentTarget, type, sum, minimum, maximum, count));
+                    currentTarget = target;
+                    sum = 0;
+                    minimum = Float.MAX_VALUE;
+                    maximum = -Float.MAX_VALUE;
+                    count = 0;
+                }
+                sum += page.sums[offset];
+                minimum = Math.min(minimum, page.minimums[offset]);
+                maximum = Math.max(maximum, page.maximums[offset]);
+                count += page.counts[offset];
+            }
+            if (count > 0) values.add(toValue(currentTarget, type, sum, minimum, maximum, count));
+            return values;
+        }
+
+        private static Value toValue(long timestamp, Aggregation.Type type, double sum, float minimum, float maximum, long count) {
+            switch (type) {
+                case SUM:
+                    return Value.create(timestamp, sum);
+                case MIN:
+                    return Value.create(timestamp, minimum);
+                case MAX:
+                    return Value.create(timestamp, maximum);
+                case AVG:
+                    return Value.create(timestamp, sum / count);
+                case COUNT:
+                    return Value.create(timestamp, (double) count);
+                default:
+                    throw new IllegalStateException("Unhandled type: " + type);
+            }
+        }
+    }
+
+    /**
+     * A page of buckets.
+     */
+    private static final class Page {
+
+        private final long[] starts = new long[PAGE_SIZE];
+        private final double[] sums = new double[PAGE_SIZE];
+        private final float[] minimums = new float[PAGE_SIZE];
+        private final float[] maximums = new float[PAGE_SIZE];
+        private final int[] counts = new int[PAGE_SIZE];
+
+        private void add(int index, long start, float value) {
+            if (counts[index] == 0 || starts[index] != start) {
+                starts[index] = start;
+                sums[index] = value;
+                minimums[index] = value;
+                maximums[index] = value;
+                counts[index] = 1;
+            } else {
+                sums[index] += value;
+                minimums[index] = Math.min(minimums[index], value);
+                maximums[index] = Math.max(maximums[index], value);
+                counts[index]++;
+            }
+        }
+    }
+}
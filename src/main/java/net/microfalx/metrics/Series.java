@@ -150,11 +150,21 @@ public interface Series extends Identifiable<String>, Nameable {
      */
     double getWeight();
 
+    /**
+     * Returns an estimate of the memory (in bytes) used by this series.
+     *
+     * @return a positive integer
+     */
+    long getEstimatedSize();
+
     /**
      * Adds a new value to the series.
+     * <p>
+     * Immutable series (for example {@link #compact() compacted} series) are not changed, the value is added to
+     * a new instance instead; callers should always continue with the returned series.
      *
      * @param value the new value
-     * @return self
+     * @return self, or a new instance for immutable series
      */
     Series add(Value value);
 
@@ -162,7 +172,7 @@ public interface Series extends Identifiable<String>, Nameable {
      * Adds all values from another series to this series.
      *
      * @param series the other series
-     * @return self
+     * @return self, or a new instance for immutable series
      */
     Series add(Series series);
 
@@ -170,7 +180,7 @@ public interface Series extends Identifiable<String>, Nameable {
      * Adds the average of another series to this series.
      *
      * @param series the other series
-     * @return self
+     * @return self, or a new instance for immutable series
      */
     Series addAverage(Series series);
 
@@ -8,43 +8,110 @@ import org.apache.commons.lang3.tuple.Pair;
 import java.time.temporal.Temporal;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static java.util.Collections.unmodifiableSet;
 import static net.microfalx.lang.ArgumentUtils.requireNonNull;
 
 /**
  * A store which holds all series in memory.
+ * <p>
+ * The store can be limited to a memory budget. When the (estimated) memory used by the series (and their rollups)
+ * goes over the budget, the least recently written series are compacted first and if this is not enough, the oldest
+ * values are evicted; the rollups of a series are released once all its values are evicted.
  */
 @Provider
 @Order(Order.AFTER)
 @DefaultSerializer(SeriesMemoryStoreSerializer.class)
 public class SeriesMemoryStore extends AbstractSeriesStore {
 
-    final Map<Metric, Series> series = new ConcurrentSkipListMap<>();
+    private static final Metrics METRICS = Metrics.of("Series").withGroup("Memory");
+
+    private static final float BUDGET_TARGET = 0.9f;
+
+    final Map<Metric, SeriesHolder> series = new ConcurrentSkipListMap<>();
+
+    private volatile long memoryBudget;
+    private final AtomicLong estimatedSize = new AtomicLong();
+    private final AtomicBoolean enforcingBudget = new AtomicBoolean();
 
     protected SeriesMemoryStore() {
     }
 
+    /**
+     * Returns the memory budget (in bytes) of this store.
+     *
+     * @return a positive integer, 0 if the store is not limited
+     */
+    public final long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Changes the memory budget (in bytes) of this store.
+     *
+     * @param memoryBudget the budget, 0 (or less) to not limit the store
+     * @return self
+     */
+    public final SeriesMemoryStore setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+        enforceBudget();
+        return this;
+    }
+
     @Override
     public Set<Metric> getMetrics() {
         return unmodifiableSet(series.keySet());
     }
 
+    /**
+     * Returns a live view of the series for a given metric.
+     * <p>
+     * The view always reads the values currently held by the store, so it follows the values added later (and
+     * the compaction or the eviction of the series). Values added to the view are added to the store, like
+     * with {@link #add(Metric, Value)}.
+     *
+     * @param metric the metric
+     * @return the series
+     */
     @Override
     public Series get(Metric metric) {
         requireNonNull(metric);
-        return getOrCreate(metric);
+        return new LiveSeries(metric);
+    }
+
+    @Override
+    public Optional<Value> getLast(Metric metric) {
+        requireNonNull(metric);
+        SeriesHolder holder = series.get(metric);
+        return holder != null ? Optional.ofNullable(holder.getLast()) : Optional.empty();
     }
 
     @Override
     public Series get(Metric metric, Temporal from, Temporal to) {
         requireNonNull(metric);
-        Series series = get(metric);
+        return filter(metric.getName(), getSeries(metric).getValues(), from, to);
+    }
+
+    /**
+     * Creates a series with the values within a time interval.
+     *
+     * @param name   the name of the series
+     * @param values the values
+     * @param from   the start of the interval
+     * @param to     the end of the interval
+     * @return a non-null instance
+     */
+    static Series filter(String name, List<Value> values, Temporal from, Temporal to) {
         Collection<Value> newValues = new ArrayList<>();
-        for (Value value : series.getValues()) {
+        int iteration = 0;
+        for (Value value : values) {
+            Deadline.check(iteration++);
             if (value.isWithin(from, to)) newValues.add(value);
         }
-        return Series.create(series.getName(), newValues);
+        return Series.create(name, newValues);
     }
 
     @Override
@@ -52,31 +119,283 @@ public class SeriesMemoryStore extends AbstractSeriesStore {
         return get(metric, from, to).getAverage();
     }
 
+    @Override
+    public long getEstimatedSize() {
+        long size = 0;
+        for (SeriesHolder holder : series.values()) {
+            size += holder.getEstimatedSize();
+        }
+        return size;
+    }
+
+    @Override
+    protected long getEstimatedSize(Metric metric) {
+        SeriesHolder holder = series.get(metric);
+        return holder != null ? holder.getEstimatedSize() : 0;
+    }
+
     @Override
     public void add(Metric metric, Value value) {
         requireNonNull(metric);
-        Series series = getOrCreate(metric);
-        value = adaptValue(metric, value);
-        if (value != null) series.add(value);
+        Value adaptedValue = update(metric, holder -> holder.add(value, this));
+        if (adaptedValue != null) afterAdd(metric, adaptedValue);
     }
 
     @Override
     public void add(Batch batch) {
         requireNonNull(batch);
         for (Pair<Metric, Value> value : batch) {
-            Metric metric = value.getKey();
-            Series series = getOrCreate(metric);
-            Value adaptedValue = adaptValue(metric, value.getValue());
-            if (adaptedValue != null) series.add(adaptedValue);
+            add(value.getKey(), value.getValue());
+        }
+    }
+
+    @Override
+    void ingest(Metric metric, List<Value> values) {
+        update(metric, holder -> {
+            holder.addAll(values, this);
+            return null;
+        });
+        for (Value value : values) {
+            afterAdd(metric, value);
         }
     }
 
     @Override
     public void clear() {
         series.clear();
+        clearRollups();
+        estimatedSize.set(0);
+    }
+
+    /**
+     * Returns the values older than a given timestamp from a series.
+     *
+     * @param metric   the metric
+     * @param boundary the timestamp (millis since epoch)
+     * @return the values, sorted by timestamp
+     */
+    List<Value> getOlder(Metric metric, long boundary) {
+        List<Value> values = new ArrayList<>();
+        for (Value value : getSeries(metric).getValues()) {
+            if (value.getTimestamp() < boundary) values.add(value);
+        }
+        if (!MetricUtils.isSorted(values)) values.sort(Comparator.comparingLong(Value::getTimestamp));
+        return values;
+    }
+
+    /**
+     * Removes values from a series, atomically with respect to the values added concurrently.
+     * <p>
+     * Values added after the given values were read are kept, even when they are older.
+     *
+     * @param metric the metric
+     * @param values the values, sorted by timestamp
+     */
+    void remove(Metric metric, List<Value> values) {
+        SeriesHolder holder = series.get(metric);
+        if (holder == null) return;
+        synchronized (holder) {
+            if (holder.isRemoved()) return;
+            long previousSize = holder.getEstimatedSize();
+            holder.remove(values);
+            estimatedSize.addAndGet(holder.getEstimatedSize() - previousSize);
+        }
+    }
+
+    @Override
+    Series getSeries(Metric metric) {
+        SeriesHolder holder = series.get(metric);
+        return holder != null ? holder.series : createEmpty(metric);
+    }
+
+    /**
+     * Changes the series of a metric while holding the lock of its holder.
+     * <p>
+     * A holder evicted (removed) concurrently is not changed, the change is retried with the holder which
+     * replaced it. The memory budget is enforced after the lock is released.
+     *
+     * @param metric the metric
+     * @param action the change
+     * @param <T>    the type of the result of the change
+     * @return the result of the change
+     */
+    private <T> T update(Metric metric, Function<SeriesHolder, T> action) {
+        for (; ; ) {
+            SeriesHolder holder = getOrCreate(metric);
+            T result;
+            long delta;
+            synchronized (holder) {
+                if (holder.isRemoved()) continue;
+                long previousSize = holder.getEstimatedSize();
+                result = action.apply(holder);
+                delta = holder.getEstimatedSize() - previousSize;
+            }
+            afterResize(delta);
+            return result;
+        }
+    }
+
+    private SeriesHolder getOrCreate(Metric metric) {
+        SeriesHolder holder = this.series.get(metric);
+        if (holder != null) return holder;
+        return this.series.computeIfAbsent(metric, m -> {
+            estimatedSize.addAndGet(DefaultSeries.OVERHEAD_SIZE);
+            return new SeriesHolder(metric, createEmpty(metric));
+        });
+    }
+
+    private Series createEmpty(Metric metric) {
+        return Series.create(metric.getName()).setRetention(getRetention());
+    }
+
+    private void afterResize(long delta) {
+        if (delta == 0 || memoryBudget == 0) return;
+        if (estimatedSize.addAndGet(delta) > memoryBudget) enforceBudget();
     }
 
-    private Series getOrCreate(Metric metric) {
-        return this.series.computeIfAbsent(metric, m -> Series.create(metric.getName()).setRetention(getRetention()));
+    private void enforceBudget() {
+        if (memoryBudget == 0 || !enforcingBudget.compareAndSet(false, true)) return;
+        try {
+            long size = getEstimatedSize();
+            long target = (long) (memoryBudget * BUDGET_TARGET);
+            if (size > memoryBudget) {
+                List<SeriesHolder> holders = new ArrayList<>(series.values());
+                holders.sort(Comparator.comparingLong(SeriesHolder::getLastWrite));
+                size = compact(holders, size, target);
+                size = evict(holders, size, target);
+            }
+            estimatedSize.set(size);
+        } finally {
+            enforcingBudget.set(false);
+        }
+    }
+
+    private long compact(List<SeriesHolder> holders, long size, long target) {
+        for (SeriesHolder holder : holders) {
+            if (size <= target) break;
+            long delta = holder.compact();
+            if (delta != 0) METRICS.count("Compact");
+            size += delta;
+        }
+        return size;
+    }
+
+    private long evict(List<SeriesHolder> holders, long size, long target) {
+        boolean evicted = true;
+        while (evicted && size > target) {
+            evicted = false;
+            for (Iterator<SeriesHolder> iterator = holders.iterator(); iterator.hasNext() && size > target; ) {
+                SeriesHolder holder = iterator.next();
+                long delta;
+                synchronized (holder) {
+                    delta = holder.trim(Math.max(1, holder.series.getCount() / 2));
+                    if (holder.series.isEmpty()) {
+                        iterator.remove();
+                        holder.markRemoved();
+                        holder.releaseRollups();
+                        series.remove(holder.getMetric(), holder);
+                        delta -= holder.getEstimatedSize();
+                    }
+                }
+                if (delta != 0) {
+                    METRICS.count("Evict");
+                    evicted = true;
+                }
+                size += delta;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A view over the series of a metric, which reads the series currently held by the store and writes
+     * through the store.
+     */
+    private final class LiveSeries extends AbstractSeries {
+
+        private final Metric metric;
+
+        private LiveSeries(Metric metric) {
+            super(metric.getName());
+            this.metric = metric;
+            setRetention(SeriesMemoryStore.this.getRetention());
+        }
+
+        @Override
+        public List<Value> getValues() {
+            return getSeries(metric).getValues();
+        }
+
+        @Override
+        public Value get(int index) {
+            return getSeries(metric).get(index);
+        }
+
+        @Override
+        public int getCount() {
+            return getSeries(metric).getCount();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getSeries(metric).isEmpty();
+        }
+
+        @Override
+        public Optional<Value> getFirst() {
+            return getSeries(metric).getFirst();
+        }
+
+        @Override
+        public Optional<Value> getLast() {
+            return getSeries(metric).getLast();
+        }
+
+        @Override
+        public OptionalDouble getAverage() {
+            return getSeries(metric).getAverage();
+        }
+
+        @Override
+        public OptionalDouble getMinimum() {
+            return getSeries(metric).getMinimum();
+        }
+
+        @Override
+        public OptionalDouble getMaximum() {
+            return getSeries(metric).getMaximum();
+        }
+
+        @Override
+        public double getWeight() {
+            return getSeries(metric).getWeight();
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return getSeries(metric).getEstimatedSize();
+        }
+
+        @Override
+        public Series add(Value value) {
+            SeriesMemoryStore.this.add(metric, value);
+            return this;
+        }
+
+        @Override
+        Series addAll(List<Value> values) {
+            ingest(metric, values);
+            return this;
+        }
+
+        @Override
+        public Series compact() {
+            return getSeries(metric).compact();
+        }
+
+        @Override
+        Series trim(int count) {
+            throw new UnsupportedOperationException("A live series cannot be trimmed");
+        }
     }
 }
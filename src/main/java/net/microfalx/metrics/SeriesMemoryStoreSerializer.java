@@ -14,10 +14,14 @@ public class SeriesMemoryStoreSerializer extends Serializer<SeriesMemoryStore> {
     @Override
     public void write(Kryo kryo, Output output, SeriesMemoryStore object) {
         output.writeInt((int) object.getRetention().toSeconds());
-        for (Map.Entry<Metric, Series> entry : object.series.entrySet()) {
+        for (Map.Entry<Metric, AbstractSeriesStore.SeriesHolder> entry : object.series.entrySet()) {
             output.writeBoolean(true);
             kryo.writeObject(output, entry.getKey());
-            kryo.writeObject(output, entry.getValue());
+            Series series = entry.getValue().series;
+            if (!(series instanceof DefaultSeries)) {
+                series = Series.create(series.getName(), series.getValues()).setRetention(series.getRetention());
+            }
+            kryo.writeObject(output, series);
         }
         output.writeBoolean(false);
     }
@@ -29,9 +33,9 @@ public class SeriesMemoryStoreSerializer extends Serializer<SeriesMemoryStore> {
         while (input.readBoolean()) {
             Metric metric = kryo.readObject(input, Metric.class);
             Series series =  kryo.readObject(input, DefaultSeries.class);
-            store.series.put(metric, series);
+            store.series.put(metric, new AbstractSeriesStore.SeriesHolder(metric, series));
         }
-        return store;
+        return AbstractSeriesStore.register(store);
     }
 
 }
@@ -6,9 +6,11 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.Temporal;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalDouble;
 import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * An abstraction of a store for {@link Series}.
@@ -40,7 +42,7 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      * @return a non-null instance
      */
     static SeriesStore memory() {
-        return new SeriesMemoryStore();
+        return AbstractSeriesStore.register(new SeriesMemoryStore());
     }
 
     /**
@@ -50,7 +52,17 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      * @return a non-null instance
      */
     static SeriesStore disk(String name) {
-        return new SqliteSeriesStore(name);
+        return AbstractSeriesStore.register(new SqliteSeriesStore(name));
+    }
+
+    /**
+     * Creates a series store which keeps the recent values in memory and the older values on disk.
+     *
+     * @param name the name on disk
+     * @return a non-null instance
+     */
+    static SeriesStore tiered(String name) {
+        return AbstractSeriesStore.register(new TieredSeriesStore(name));
     }
 
     /**
@@ -68,6 +80,41 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      */
     SeriesStore setRetention(Duration retention);
 
+    /**
+     * Returns the rollup tiers maintained by this store.
+     *
+     * @return a non-null instance, sorted by step
+     */
+    Collection<Rollup> getRollups();
+
+    /**
+     * Changes the rollup tiers maintained by this store.
+     * <p>
+     * Existing rollups are discarded, the new tiers only receive values added after this call (intervals which
+     * start before this call are answered from the raw values).
+     *
+     * @param rollups the rollup tiers, empty to disable rollups
+     * @return self
+     */
+    SeriesStore setRollups(Collection<Rollup> rollups);
+
+    /**
+     * Registers a {@link Aggregation#isStreaming() streaming} aggregation, which receives every value
+     * added to this store (after counters are converted to deltas).
+     *
+     * @param aggregation the aggregation
+     * @return self
+     */
+    SeriesStore addAggregation(Aggregation aggregation);
+
+    /**
+     * Unregisters a streaming aggregation.
+     *
+     * @param aggregation the aggregation
+     * @return self
+     */
+    SeriesStore removeAggregation(Aggregation aggregation);
+
     /**
      * Returns the stored metrics.
      *
@@ -104,6 +151,43 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      */
     Optional<LocalDateTime> getLatestTimestamp(Metric metric);
 
+    /**
+     * Returns the last (most recent) value of a metric.
+     * <p>
+     * The last values are indexed as they are added, so this does not read the series.
+     *
+     * @param metric the metric
+     * @return the value, empty if the metric has no values
+     */
+    Optional<Value> getLast(Metric metric);
+
+    /**
+     * Returns the last (most recent) values of all metrics accepted by a selector.
+     * <p>
+     * The cost is proportional to the number of metrics, the series are not read.
+     *
+     * @param selector the selector
+     * @return a non-null instance
+     */
+    Map<Metric, Value> getLast(Predicate<Metric> selector);
+
+    /**
+     * Returns the metrics accepted by a selector with the highest statistic (maximum, average, sum, etc.)
+     * of their values within a time interval.
+     * <p>
+     * Only the statistic of each series is calculated (from the rollups, when available) and the top metrics are
+     * kept in a bounded heap, so the series are not materialized.
+     *
+     * @param selector the selector
+     * @param from     the start of the interval
+     * @param to       the end of the interval
+     * @param type     the statistic used to rank the metrics ({@code SUM}, {@code MIN}, {@code MAX}, {@code AVG} or
+     *                 {@code COUNT})
+     * @param count    the maximum number of metrics returned
+     * @return a non-null instance, with the metrics and their statistic, ranked by statistic (highest first)
+     */
+    Map<Metric, Double> getTop(Predicate<Metric> selector, Temporal from, Temporal to, Aggregation.Type type, int count);
+
     /**
      * Returns the series for a given metric.
      *
@@ -122,6 +206,21 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      */
     Series get(Metric metric, Temporal from, Temporal to);
 
+    /**
+     * Returns the series for a given metric within a time interval, aggregated at a given step.
+     * <p>
+     * The values are read from the coarsest {@link #getRollups() rollup tier} which has a step dividing the
+     * requested step and covers the interval. If there is no such tier, the raw values are aggregated.
+     *
+     * @param metric the metric
+     * @param from   the start of the interval
+     * @param to     the end of the interval
+     * @param step   the step between values
+     * @param type   the aggregation type
+     * @return the series
+     */
+    Series get(Metric metric, Temporal from, Temporal to, Duration step, Aggregation.Type type);
+
     /**
      * Returns the average for a given metric.
      *
@@ -149,6 +248,22 @@ public interface SeriesStore extends Comparable<SeriesStore> {
      */
     OptionalDouble getAverage(Metric metric);
 
+    /**
+     * Returns an estimate of the memory (in bytes) used by this store.
+     * <p>
+     * Stores which keep the series outside the heap return the (estimated) storage used by the series.
+     *
+     * @return a positive integer
+     */
+    long getEstimatedSize();
+
+    /**
+     * Returns an estimate of the memory (in bytes) used by each metric.
+     *
+     * @return a non-null instance, sorted by size (largest first)
+     */
+    Map<Metric, Long> getEstimatedSizes();
+
     /**
      * Adds a new value to this series.
      *
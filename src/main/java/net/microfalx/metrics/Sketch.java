@@ -0,0 +1,180 @@
+package net.microfalx.metrics;
+
+import java.util.StringJoiner;
+
+/**
+ * A mergeable quantile sketch with a relative accuracy guarantee (DDSketch style).
+ * <p>
+ * Values are mapped to logarithmic bins, so any quantile is returned with a relative error of at most
+ * {@link #DEFAULT_ACCURACY}. The number of bins is bounded; when the bound is reached, the lowest bins are
+ * collapsed (which only affects the accuracy of the lowest quantiles).
+ * <p>
+ * Two sketches are merged by adding their bin counts, so merges are cheap and associative.
+ * <p>
+ * The sketch is not thread-safe.
+ */
+final class Sketch {
+
+    static final double DEFAULT_ACCURACY = 0.01;
+    static final int DEFAULT_MAXIMUM_BINS = 2048;
+
+    private static final double GAMMA = (1 + DEFAULT_ACCURACY) / (1 - DEFAULT_ACCURACY);
+    private static final double MULTIPLIER = 1 / Math.log(GAMMA);
+    private static final int INITIAL_BINS = 32;
+
+    private final Bins positives = new Bins();
+    private final Bins negatives = new Bins();
+    private long zeroCount;
+
+    /**
+     * Adds a value to the sketch.
+     *
+     * @param value the value
+     */
+    void add(double value) {
+        if (Double.isNaN(value)) return;
+        if (value > 0) {
+            positives.add(index(value), 1);
+        } else if (value < 0) {
+            negatives.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+    }
+
+    /**
+     * Merges another sketch into this sketch.
+     *
+     * @param sketch the other sketch
+     */
+    void merge(Sketch sketch) {
+        positives.merge(sketch.positives);
+        negatives.merge(sketch.negatives);
+        zeroCount += sketch.zeroCount;
+    }
+
+    /**
+     * Returns the number of values added to the sketch.
+     *
+     * @return a positive integer
+     */
+    long getCount() {
+        return positives.total + negatives.total + zeroCount;
+    }
+
+    /**
+     * Returns the (approximated) value at a given quantile.
+     *
+     * @param quantile the quantile, between 0 and 1
+     * @return the value, {@link Double#NaN} if the sketch is empty
+     */
+    double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) throw new IllegalArgumentException("Invalid quantile: " + quantile);
+        long count = getCount();
+        if (count == 0) return Double.NaN;
+        long rank = (long) (quantile * (count - 1));
+        long current = 0;
+        if (negatives.total > 0) {
+            for (int index = negatives.maximum; index >= negatives.minimum; index--) {
+                current += negatives.get(index);
+                if (current > rank) return -value(index);
+            }
+        }
+        current += zeroCount;
+        if (current > rank) return 0;
+        if (positives.total > 0) {
+            for (int index = positives.minimum; index <= positives.maximum; index++) {
+                current += positives.get(index);
+                if (current > rank) return value(index);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the number of bins used by the sketch.
+     *
+     * @return a positive integer
+     */
+    int getBinCount() {
+        return positives.counts.length + negatives.counts.length;
+    }
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) * MULTIPLIER);
+    }
+
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Sketch.class.getSimpleName() + "[", "]")
+                .add("count=" + getCount())
+                .add("bins=" + getBinCount())
+                .toString();
+    }
+
+    /**
+     * A contiguous range of bins, indexed by the logarithmic index of the values.
+     */
+    private static final class Bins {
+
+        private long[] counts = new long[0];
+        private int offset;
+        private int minimum;
+        private int maximum;
+        private long total;
+
+        private long get(int index) {
+            return counts[index - offset];
+        }
+
+        private void add(int index, long count) {
+            if (total == 0) {
+                minimum = index;
+                maximum = index;
+            }
+            int low = Math.min(minimum, index);
+            int high = Math.max(maximum, index);
+            long collapsed = 0;
+            if (high - low + 1 > DEFAULT_MAXIMUM_BINS) {
+                low = high - DEFAULT_MAXIMUM_BINS + 1;
+                for (int current = minimum; current <= Math.min(maximum, low - 1); current++) {
+                    collapsed += counts[current - offset];
+                    counts[current - offset] = 0;
+                }
+                index = Math.max(index, low);
+            }
+            ensureCapacity(low, high);
+            counts[low - offset] += collapsed;
+            counts[index - offset] += count;
+            total += count;
+            minimum = low;
+            maximum = high;
+        }
+
+        private void merge(Bins bins) {
+            if (bins.total == 0) return;
+            for (int index = bins.minimum; index <= bins.maximum; index++) {
+                long count = bins.get(index);
+                if (count > 0) add(index, count);
+            }
+        }
+
+        private void ensureCapacity(int low, int high) {
+            if (counts.length > 0 && low >= offset && high < offset + counts.length) return;
+            int length = Math.min(DEFAULT_MAXIMUM_BINS, Math.max(INITIAL_BINS, Math.max(2 * counts.length, high - low + 1)));
+            int newOffset = counts.length > 0 && low < offset ? high - length + 1 : low;
+            long[] newCounts = new long[length];
+            if (total > 0) {
+                for (int index = Math.max(minimum, newOffset); index <= maximum; index++) {
+                    newCounts[index - newOffset] = counts[index - offset];
+                }
+            }
+            counts = newCounts;
+            offset = newOffset;
+        }
+    }
+}
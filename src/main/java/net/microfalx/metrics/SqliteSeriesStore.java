@@ -16,7 +16,9 @@ import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.temporal.Temporal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -40,11 +42,14 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
     private static final Metrics METRICS = Metrics.of("Series").withGroup("Store");
     private static final String DEFAULT_NAME = "metrics";
     private static final String FILE_EXTENSION = ".db";
+    private static final String WAL_FILE_SUFFIX = "-wal";
+    private static final int ROW_SIZE = 20;
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock rlock = lock.readLock();
     private final Lock wlock = lock.writeLock();
     private final Set<String> metricsCreated = new ConcurrentSkipListSet<>();
+    private final Map<String, AtomicLong> rowCounts = new ConcurrentHashMap<>();
     private final String name;
     private volatile File db;
     private volatile Driver driver;
@@ -120,12 +125,31 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         }
     }
 
+    @Override
+    protected OptionalDouble getStatistic(Metric metric, Temporal from, Temporal to, Aggregation.Type type) {
+        if (!RollupStore.isSupported(type)) throw new IllegalArgumentException("Unsupported statistic: " + type);
+        OptionalDouble statistic = getRollupStatistic(metric, from, to, type);
+        if (statistic != null) return statistic;
+        checkMetricTable(metric);
+        try {
+            return doWithResultSet(String.format(EXTRACT_SERIES_STATISTIC, type.name(), getTableName(metric)), resultSet ->
+                    resultSet.next() && resultSet.getLong(2) > 0 ? OptionalDouble.of(resultSet.getDouble(1))
+                            : OptionalDouble.empty(), toMillis(from), toMillis(to));
+        } catch (SQLException e) {
+            Deadline.check();
+            throw new MetricException("Failed to extract statistic for metric '" + metric.getName()
+                    + "', store '" + name + "'", e);
+        }
+    }
+
     @Override
     public void add(Metric metric, Value value) {
         checkMetricTable(metric);
         requireNonNull(value);
         try {
             update(createInsertSql(metric), value.getTimestamp(), value.asFloat());
+            updateRowCount(metric, 1);
+            afterIngest(metric, value);
         } catch (SQLException e) {
             throw new MetricException("Failed to store value '" + value + "' for metrics '" + metric.getName()
                     + "', store '" + name + "'", e);
@@ -142,6 +166,8 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
                     Value value = pair.getValue();
                     checkMetricTable(metric);
                     update(createInsertSql(metric), value.getTimestamp(), value.asFloat());
+                    updateRowCount(metric, 1);
+                    afterIngest(metric, value);
                 }
                 return null;
             });
@@ -150,6 +176,88 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         }
     }
 
+    /**
+     * Adds multiple values for a metric, in one transaction.
+     * <p>
+     * Values with a timestamp already present in the store replace the existing values. Once committed, the values
+     * update the rollups, the last value index and the streaming aggregations.
+     *
+     * @param metric the metric
+     * @param values the values
+     */
+    void add(Metric metric, Collection<Value> values) {
+        checkMetricTable(metric);
+        requireNonNull(values);
+        if (values.isEmpty()) return;
+        try {
+            doInConnection(connection -> {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                PreparedStatement statement = connection.prepareStatement(createInsertOrReplaceSql(metric));
+                try (Timer ignored = METRICS.startTimer("Batch")) {
+                    for (Value value : values) {
+                        statement.setLong(1, value.getTimestamp());
+                        statement.setFloat(2, value.asFloat());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    connection.commit();
+                    updateRowCount(metric, values.size());
+                    for (Value value : values) {
+                        afterIngest(metric, value);
+                    }
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    closeQuietly(statement);
+                    connection.setAutoCommit(autoCommit);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new MetricException("Failed to store " + values.size() + " values for metrics '" + metric.getName()
+                    + "', store '" + name + "'", e);
+        }
+    }
+
+    @Override
+    void ingest(Metric metric, List<Value> values) {
+        add(metric, values);
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        File file = getFile();
+        return file.length() + new File(file.getParentFile(), file.getName() + WAL_FILE_SUFFIX).length() + getRollupSize();
+    }
+
+    /**
+     * Returns the estimated size of a series.
+     * <p>
+     * The rows are counted once per metric, then the count is updated as values are added (values which replace
+     * existing values are counted again, which is acceptable for an estimate). The rollups kept in memory for the
+     * metric are included.
+     *
+     * @param metric the metric
+     * @return a positive integer
+     */
+    @Override
+    protected long getEstimatedSize(Metric metric) {
+        checkMetricTable(metric);
+        AtomicLong rowCount = rowCounts.get(metric.getId());
+        if (rowCount == null) {
+            try {
+                Long count = doWithResultSet(String.format(EXTRACT_SERIES_COUNT, getTableName(metric)), SqliteSeriesStore::getFirstLong);
+                rowCount = rowCounts.computeIfAbsent(metric.getId(), id -> new AtomicLong(count != null ? count : 0));
+            } catch (SQLException e) {
+                throw new MetricException("Failed to extract size for metric '" + metric.getName()
+                        + "', store '" + name + "'", e);
+            }
+        }
+        return rowCount.get() * ROW_SIZE + getRollupSize(metric);
+    }
+
     @Override
     public Optional<LocalDateTime> getEarliestTimestamp(Metric metric) {
         return getTimestamp(metric, EXTRACT_SERIES_EARLIEST);
@@ -160,6 +268,18 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         return getTimestamp(metric, EXTRACT_SERIES_LATEST);
     }
 
+    @Override
+    protected Optional<Value> loadLast(Metric metric) {
+        checkMetricTable(metric);
+        try {
+            return doWithResultSet(String.format(EXTRACT_SERIES_LAST, getTableName(metric)), resultSet ->
+                    resultSet.next() ? Optional.of(Value.create(resultSet.getLong(1), resultSet.getFloat(2))) : Optional.empty());
+        } catch (SQLException e) {
+            throw new MetricException("Failed to extract last value for metric '" + metric.getName()
+                    + "', store '" + name + "'", e);
+        }
+    }
+
     private Optional<LocalDateTime> getTimestamp(Metric metric, String sql) {
         checkMetricTable(metric);
         try {
@@ -177,11 +297,19 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
             for (String tableName : getTableNames()) {
                 execute(String.format(DELETE_SERIES, tableName));
             }
+            rowCounts.clear();
+            clearRollups();
+            clearLastValues();
         } catch (SQLException e) {
             throw new MetricException("Failed to clear storage", e);
         }
     }
 
+    private void updateRowCount(Metric metric, long delta) {
+        AtomicLong rowCount = rowCounts.get(metric.getId());
+        if (rowCount != null) rowCount.addAndGet(delta);
+    }
+
     private void checkMetricTable(Metric metric) {
         requireNonNull(metric);
         String id = metric.getId();
@@ -201,7 +329,9 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
     }
 
     private void extractSeries(DefaultSeries series, ResultSet resultSet) throws SQLException {
+        int iteration = 0;
         while (resultSet.next()) {
+            Deadline.check(iteration++);
             Value value = Value.create(resultSet.getLong(1), resultSet.getFloat(2));
             series.values.add(value);
         }
@@ -241,15 +371,19 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         return doInConnection(connection -> {
             PreparedStatement statement = connection.prepareStatement(sql);
             ResultSet resultSet = null;
-            try {
+            try (Deadline.Watch ignoredWatch = Deadline.watch(() -> cancel(statement))) {
                 try (Timer ignored = METRICS.startTimer("Query")) {
                     int index = 1;
                     for (Object arg : args) {
                         statement.setObject(index++, arg);
                     }
+                    statement.setQueryTimeout(Deadline.getRemainingSeconds());
                     resultSet = statement.executeQuery();
                 }
                 return callback.doWithResultSet(resultSet);
+            } catch (SQLException e) {
+                Deadline.check();
+                throw e;
             } finally {
                 closeQuietly(resultSet);
                 closeQuietly(statement);
@@ -257,6 +391,14 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         });
     }
 
+    private void cancel(Statement statement) {
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to cancel statement, store '{}'", name, e);
+        }
+    }
+
     private <T> T doInConnection(ConnectionCallback<T> callback) throws SQLException {
         requireNonNull(callback);
         Connection connection = CONNECTION.get();
@@ -346,6 +488,14 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
         return builder.toString();
     }
 
+    private String createInsertOrReplaceSql(Metric metric) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("INSERT OR REPLACE INTO ").append(getTableName(metric)).append(" (")
+                .append("timestamp, value)")
+                .append("VALUES (?,?)");
+        return builder.toString();
+    }
+
     private Set<String> getTableNames() throws SQLException {
         return doWithResultSet(EXTRACT_TABLE_NAMES, resultSet -> {
             Set<String> tableNames = new HashSet<>();
@@ -369,8 +519,11 @@ final class SqliteSeriesStore extends AbstractSeriesStore {
     private static final String EXTRACT_SERIES = "SELECT * FROM %s";
     private static final String EXTRACT_SERIES_WITH_RANGE = "SELECT * FROM %s where timestamp >= ? and timestamp <= ?";
     private static final String EXTRACT_SERIES_AVERAGE = "SELECT AVG(value) FROM %s where timestamp >= ? and timestamp <= ?";
+    private static final String EXTRACT_SERIES_STATISTIC = "SELECT %s(value), count(*) FROM %s where timestamp >= ? and timestamp <= ?";
+    private static final String EXTRACT_SERIES_COUNT = "SELECT count(*) FROM %s";
     private static final String EXTRACT_SERIES_EARLIEST = "SELECT min(timestamp) FROM %s";
     private static final String EXTRACT_SERIES_LATEST = "SELECT max(timestamp) FROM %s";
+    private static final String EXTRACT_SERIES_LAST = "SELECT timestamp, value FROM %s ORDER BY timestamp DESC LIMIT 1";
     private static final String DELETE_SERIES = "DELETE FROM %s";
     private static final String EXTRACT_TABLE_NAMES = "SELECT name FROM sqlite_master WHERE type='table'";
 }
@@ -0,0 +1,125 @@
+package net.microfalx.metrics;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.Flow;
+
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+
+/**
+ * A repository which answers queries from a {@link SeriesStore}.
+ * <p>
+ * The query text is a subset of PromQL (see {@link QueryParser}): selectors with label matchers, range functions
+ * ({@code rate}, {@code avg_over_time}, etc.) and aggregations grouped by labels. Each query is parsed into an
+ * execution plan which is executed against the store, for the time interval and the step of the query.
+ * <p>
+ * {@link Query#isInstant() Instant} queries return the most recent value of each time-series; plain selectors are
+ * answered from the last value index of the store, without reading the series. In both cases, only values within
+ * one step before the end of the query are returned.
+ * <p>
+ * The execution is bounded by the {@link Query#getTimeOut() timeout} of the query; a query which runs past its
+ * timeout (or which cannot be parsed) returns a failed result, with a message describing the problem. Streamed
+ * queries report the same problems as errors of the stream.
+ */
+public final class StoreRepository extends AbstractRepository {
+
+    /**
+     * The type of queries supported by this repository.
+     */
+    public static final String TYPE = "store";
+
+    private final SeriesStore store;
+
+    /**
+     * Creates a repository for the default store.
+     *
+     * @return a non-null instance
+     */
+    public static StoreRepository create() {
+        return create(SeriesStore.get());
+    }
+
+    /**
+     * Creates a repository for a store.
+     *
+     * @param store the store
+     * @return a non-null instance
+     */
+    public static StoreRepository create(SeriesStore store) {
+        return new StoreRepository(store);
+    }
+
+    private StoreRepository(SeriesStore store) {
+        requireNonNull(store);
+        this.store = store;
+    }
+
+    /**
+     * Returns the store used by this repository.
+     *
+     * @return a non-null instance
+     */
+    public SeriesStore getStore() {
+        return store;
+    }
+
+    @Override
+    public boolean supports(Query query) {
+        requireNonNull(query);
+        return TYPE.equalsIgnoreCase(query.getType());
+    }
+
+    @Override
+    public Result query(Query query) {
+        requireNonNull(query);
+        try (Deadline ignored = Deadline.start(query.getTimeOut())) {
+            QueryPlan plan = QueryParser.parse(query.getText());
+            if (query.isInstant()) return Result.vector(query, queryInstant(plan, query));
+            return Result.matrix(query, plan.execute(createContext(query)));
+        } catch (QueryException e) {
+            return Result.failed(query).withMessage(e.getMessage());
+        }
+    }
+
+    @Override
+    public Flow.Publisher<MatrixChunk> stream(Query query) {
+        requireNonNull(query);
+        return MatrixPublisher.create(query.getTimeOut(), consumer -> {
+            QueryPlan plan = QueryParser.parse(query.getText());
+            plan.execute(createContext(query), consumer);
+        });
+    }
+
+    private Collection<Vector> queryInstant(QueryPlan plan, Query query) {
+        Collection<Vector> vectors = new ArrayList<>();
+        long end = query.getEndTime().toInstant().toEpochMilli();
+        Duration stepDuration = MetricUtils.getStep(query);
+        long step = stepDuration.toMillis();
+        if (plan instanceof QueryPlan.Selector && query.getEndTime().plus(stepDuration).isAfter(ZonedDateTime.now())) {
+            Map<Metric, Value> values = store.getLast(((QueryPlan.Selector) plan)::matches);
+            values.forEach((metric, value) -> {
+                if (value.getTimestamp() >= end - step && value.getTimestamp() <= end) {
+                    vectors.add(Vector.create(metric, value));
+                }
+            });
+        } else {
+            for (Matrix matrix : plan.execute(new QueryPlan.Context(store, end - step, end, step))) {
+                matrix.getLast().ifPresent(value -> vectors.add(Vector.create(matrix.getMetric(), value)));
+            }
+        }
+        return vectors;
+    }
+
+    private QueryPlan.Context createContext(Query query) {
+        return new QueryPlan.Context(store, query.getStartTime().toInstant().toEpochMilli(),
+                query.getEndTime().toInstant().toEpochMilli(), MetricUtils.getStep(query).toMillis());
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", StoreRepository.class.getSimpleName() + "[", "]")
+                .add("store=" + store)
+                .toString();
+    }
+}
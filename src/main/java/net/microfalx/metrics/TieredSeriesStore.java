@@ -0,0 +1,269 @@
+package net.microfalx.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.Temporal;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.Duration.ofMinutes;
+import static net.microfalx.lang.ArgumentUtils.requireNonNull;
+import static net.microfalx.lang.ArgumentUtils.requireNotEmpty;
+import static net.microfalx.lang.TimeUtils.toMillis;
+
+/**
+ * A store which keeps the most recent values in memory and spills the older values on disk.
+ * <p>
+ * Values are always added in memory (the hot tier). A background task moves (in batches) the values older
+ * than the {@link #getHotWindow() hot window} to a {@link SqliteSeriesStore disk store} (the cold tier); a batch
+ * is removed from memory only once it is written to disk, so the values are always readable from one tier.
+ * Queries which cover both tiers are stitched together.
+ */
+public final class TieredSeriesStore extends AbstractSeriesStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredSeriesStore.class);
+
+    private static final Metrics METRICS = Metrics.of("Series").withGroup("Tiered");
+    private static final int SPILL_BATCH_SIZE = 1000;
+    private static final Duration SPILL_INTERVAL = ofMinutes(1);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Series Spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final SeriesMemoryStore hot = register(new SeriesMemoryStore());
+    private final SqliteSeriesStore cold;
+    private volatile Duration hotWindow = ofMinutes(15);
+
+    TieredSeriesStore(String name) {
+        requireNotEmpty(name);
+        this.name = name;
+        this.cold = register(new SqliteSeriesStore(name));
+        this.hot.setRetention(hotWindow);
+        schedule(this);
+    }
+
+    /**
+     * Returns the interval of time (up to now) kept in memory.
+     *
+     * @return a non-null instance
+     */
+    public Duration getHotWindow() {
+        return hotWindow;
+    }
+
+    /**
+     * Changes the interval of time (up to now) kept in memory.
+     *
+     * @param hotWindow the interval
+     * @return self
+     */
+    public TieredSeriesStore setHotWindow(Duration hotWindow) {
+        requireNonNull(hotWindow);
+        this.hotWindow = hotWindow;
+        this.hot.setRetention(hotWindow);
+        return this;
+    }
+
+    /**
+     * Moves all values older than the hot window to disk.
+     */
+    public void flush() {
+        spill(System.currentTimeMillis() - hotWindow.toMillis());
+    }
+
+    @Override
+    public Collection<Rollup> getRollups() {
+        return hot.getRollups();
+    }
+
+    @Override
+    public SeriesStore setRollups(Collection<Rollup> rollups) {
+        hot.setRollups(rollups);
+        return this;
+    }
+
+    @Override
+    public SeriesStore addAggregation(Aggregation aggregation) {
+        hot.addAggregation(aggregation);
+        return this;
+    }
+
+    @Override
+    public SeriesStore removeAggregation(Aggregation aggregation) {
+        hot.removeAggregation(aggregation);
+        return this;
+    }
+
+    @Override
+    public Set<Metric> getMetrics() {
+        Set<Metric> metrics = new HashSet<>(hot.getMetrics());
+        metrics.addAll(cold.getMetrics());
+        return metrics;
+    }
+
+    @Override
+    public Optional<LocalDateTime> getEarliestTimestamp(Metric metric) {
+        Optional<LocalDateTime> timestamp = cold.getEarliestTimestamp(metric);
+        return timestamp.isPresent() ? timestamp : hot.getEarliestTimestamp(metric);
+    }
+
+    @Override
+    public Optional<LocalDateTime> getLatestTimestamp(Metric metric) {
+        Optional<LocalDateTime> timestamp = hot.getLatestTimestamp(metric);
+        return timestamp.isPresent() ? timestamp : cold.getLatestTimestamp(metric);
+    }
+
+    @Override
+    public Optional<Value> getLast(Metric metric) {
+        Optional<Value> value = hot.getLast(metric);
+        return value.isPresent() ? value : cold.getLast(metric);
+    }
+
+    @Override
+    public Series get(Metric metric) {
+        requireNonNull(metric);
+        Series hotSeries = hot.get(metric);
+        Series coldSeries = cold.get(metric);
+        return stitch(hotSeries, coldSeries);
+    }
+
+    @Override
+    public Series get(Metric metric, Temporal from, Temporal to) {
+        requireNonNull(metric);
+        List<Value> hotValues = hot.getSeries(metric).getValues();
+        Series hotSeries = SeriesMemoryStore.filter(metric.getName(), hotValues, from, to);
+        if (from != null && isHot(hotValues, from)) return hotSeries;
+        return stitch(hotSeries, cold.get(metric, from, to));
+    }
+
+    @Override
+    public OptionalDouble getAverage(Metric metric, Temporal from, Temporal to) {
+        return get(metric, from, to).getAverage();
+    }
+
+    @Override
+    protected OptionalDouble getStatistic(Metric metric, Temporal from, Temporal to, Aggregation.Type type) {
+        OptionalDouble statistic = getRollupStatistic(metric, from, to, type);
+        if (statistic != null) return statistic;
+        List<Value> hotValues = hot.getSeries(metric).getValues();
+        if (isHot(hotValues, from)) return getStatistic(hotValues, toMillis(from), toMillis(to), type);
+        return super.getStatistic(metric, from, to, type);
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return hot.getEstimatedSize() + cold.getEstimatedSize();
+    }
+
+    @Override
+    protected long getEstimatedSize(Metric metric) {
+        return hot.getEstimatedSize(metric) + cold.getEstimatedSize(metric);
+    }
+
+    @Override
+    public void add(Metric metric, Value value) {
+        hot.add(metric, value);
+    }
+
+    @Override
+    public void add(Batch batch) {
+        hot.add(batch);
+    }
+
+    @Override
+    public void add(Collection<SeriesStore> seriesStores, boolean average) {
+        hot.add(seriesStores, average);
+    }
+
+    @Override
+    void ingest(Metric metric, List<Value> values) {
+        hot.ingest(metric, values);
+    }
+
+    @Override
+    public void clear() {
+        hot.clear();
+        cold.clear();
+    }
+
+    @Override
+    RollupStore getRollupStore() {
+        return hot.getRollupStore();
+    }
+
+    private Series stitch(Series hotSeries, Series coldSeries) {
+        if (coldSeries.isEmpty()) return hotSeries;
+        if (hotSeries.isEmpty()) return coldSeries;
+        List<Value> values = MetricUtils.merge(List.of(hotSeries.getValues(), coldSeries.getValues()), true);
+        return Series.create(hotSeries.getName(), values);
+    }
+
+    /**
+     * Returns whether the hot tier holds all values after a timestamp.
+     * <p>
+     * The values of the hot tier are read once (the values are written to disk before they are removed from
+     * memory), so the boundary and the values are consistent.
+     *
+     * @param hotValues the values of the hot tier
+     * @param from      the timestamp
+     * @return {@code true} if the hot tier is enough, {@code false} otherwise
+     */
+    private boolean isHot(List<Value> hotValues, Temporal from) {
+        return !hotValues.isEmpty() && toMillis(from) >= hotValues.get(0).getTimestamp();
+    }
+
+    private synchronized void spill(long boundary) {
+        for (Metric metric : hot.getMetrics()) {
+            List<Value> values = hot.getOlder(metric, boundary);
+            if (values.isEmpty()) continue;
+            int index = 0;
+            try {
+                for (; index < values.size(); index += SPILL_BATCH_SIZE) {
+                    List<Value> batch = values.subList(index, Math.min(values.size(), index + SPILL_BATCH_SIZE));
+                    cold.add(metric, batch);
+                    hot.remove(metric, batch);
+                }
+                METRICS.count("Spill", values.size());
+            } catch (MetricException e) {
+                LOGGER.error("Failed to spill {} values for metric '{}', store '{}'", values.size() - index, metric.getName(), name, e);
+            }
+        }
+    }
+
+    private static void schedule(TieredSeriesStore store) {
+        WeakReference<TieredSeriesStore> reference = new WeakReference<>(store);
+        long interval = SPILL_INTERVAL.toMillis();
+        ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+        future[0] = SCHEDULER.scheduleWithFixedDelay(() -> {
+            TieredSeriesStore currentStore = reference.get();
+            if (currentStore == null) {
+                future[0].cancel(false);
+                return;
+            }
+            try {
+                currentStore.flush();
+            } catch (Exception e) {
+                LOGGER.error("Failed to spill values, store '{}'", currentStore.name, e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", TieredSeriesStore.class.getSimpleName() + "[", "]")
+                .add("name='" + name + "'")
+                .add("hotWindow=" + hotWindow)
+                .toString();
+    }
+}
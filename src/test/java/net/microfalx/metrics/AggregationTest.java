@@ -5,8 +5,7 @@ import org.junit.jupiter.api.Test;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
-import java.util.Collection;
-import java.util.Map;
+import java.util.*;
 
 import static java.time.Duration.ofMinutes;
 import static net.microfalx.lang.TimeUtils.FIVE_MINUTE;
@@ -106,6 +105,135 @@ class AggregationTest {
         assertEquals(30, matrix.getLast().get().getValue());
     }
 
+    @Test
+    void oneTimeSeries5MinutesMultipleStatistics() {
+        aggregation.setTypes(Aggregation.Type.MIN, Aggregation.Type.MAX, Aggregation.Type.COUNT,
+                Aggregation.Type.FIRST, Aggregation.Type.LAST);
+        addValues(m1);
+        Collection<Matrix> matrixes = aggregation.toMatrixes();
+        assertEquals(5, matrixes.size());
+        Map<String, Matrix> byStatistic = new HashMap<>();
+        matrixes.forEach(matrix -> byStatistic.put(matrix.getMetric().getLabel(Aggregation.STATISTIC_LABEL), matrix));
+        assertEquals(1, byStatistic.get("min").getFirst().get().getValue());
+        assertEquals(20, byStatistic.get("max").getLast().get().getValue());
+        assertEquals(2, byStatistic.get("count").getFirst().get().getValue());
+        assertEquals(1, byStatistic.get("first").getFirst().get().getValue());
+        assertEquals(20, byStatistic.get("last").getLast().get().getValue());
+        Matrix maximum = aggregation.toMatrixes(Aggregation.Type.MAX).iterator().next();
+        assertEquals(m1, maximum.getMetric());
+        assertEquals(7, maximum.getCount());
+    }
+
+    @Test
+    void oneTimeSeries5MinutesQuantiles() {
+        aggregation.setTypes(Aggregation.Type.P50, Aggregation.Type.P99);
+        for (int i = 1; i <= 1000; i++) {
+            aggregation.add(m1, Value.create(TIMESTAMP + i * 100L, i));
+        }
+        Matrix median = aggregation.toMatrixes(Aggregation.Type.P50).iterator().next();
+        assertEquals(1, median.getCount());
+        assertEquals(500, median.getFirst().get().getValue(), 5);
+        Matrix p99 = aggregation.toMatrixes(Aggregation.Type.P99).iterator().next();
+        assertEquals(990, p99.getFirst().get().getValue(), 10);
+    }
+
+    @Test
+    void streaming() {
+        List<Matrix> closed = new ArrayList<>();
+        aggregation.setStep(ofMinutes(1)).setStreaming(ofMinutes(1), closed::addAll);
+        long now = System.currentTimeMillis();
+        aggregation.add(m1, Value.create(now, 1));
+        aggregation.add(m1, Value.create(now, 2));
+        aggregation.add(m1, Value.create(now + 5 * 60_000, 4));
+        aggregation.add(m1, Value.create(now - 10 * 60_000, 5));
+        assertEquals(1, aggregation.getLateCount());
+        aggregation.advance();
+        assertEquals(0, closed.size());
+        aggregation.advance(now + 3 * 60_000);
+        assertEquals(1, closed.size());
+        assertEquals(1, closed.get(0).getCount());
+        assertEquals(3, closed.get(0).getFirst().get().getValue());
+        assertEquals(1, aggregation.toMatrixes().iterator().next().getCount());
+        aggregation.flush();
+        assertEquals(2, closed.size());
+        assertEquals(4, closed.get(1).getFirst().get().getValue());
+        assertEquals(0, aggregation.toMatrixes().size());
+    }
+
+    @Test
+    void streamingFromStore() {
+        List<Matrix> closed = new ArrayList<>();
+        aggregation.setStep(ofMinutes(1)).setStreaming(ofMinutes(1), closed::addAll);
+        SeriesStore store = SeriesStore.memory().addAggregation(aggregation);
+        long now = System.currentTimeMillis();
+        store.add(m1, Value.create(now, 1));
+        store.add(m1, Value.create(now, 2));
+        aggregation.flush();
+        assertEquals(1, closed.size());
+        assertEquals(3, closed.get(0).getFirst().get().getValue());
+    }
+
+    @Test
+    void groupBy() {
+        aggregation.setGroupBy("l1");
+        addValues(m1);
+        addValues(m2);
+        addValues(Metric.create("test", Map.of("l1", "v2")));
+        Map<String, Matrix> byLabel = new HashMap<>();
+        aggregation.toMatrixes().forEach(matrix -> byLabel.put(matrix.getMetric().getLabel("l1"), matrix));
+        assertEquals(2, byLabel.size());
+        Matrix matrix = byLabel.get("v1");
+        assertEquals(List.of("l1"), new ArrayList<>(matrix.getMetric().getLabels()));
+        assertEquals(Metric.UNNAMED, matrix.getMetric().getName());
+        assertEquals(6, matrix.getFirst().get().getValue());
+        assertEquals(3, byLabel.get("v2").getFirst().get().getValue());
+    }
+
+    @Test
+    void mergeAvg() {
+        Aggregation other = new Aggregation().setType(Aggregation.Type.AVG);
+        aggregation.setType(Aggregation.Type.AVG);
+        aggregation.add(m1, Value.create(TIMESTAMP + 1000, 1));
+        aggregation.add(m1, Value.create(TIMESTAMP + 2000, 2));
+        other.add(m1, Value.create(TIMESTAMP + 3000, 6));
+        aggregation.merge(other);
+        Collection<Matrix> matrixes = aggregation.toMatrixes();
+        assertEquals(1, matrixes.size());
+        Matrix matrix = matrixes.iterator().next();
+        assertEquals(1, matrix.getValues().size());
+        assertEquals(3, matrix.getFirst().get().getValue());
+    }
+
+    @Test
+    void addParallel() {
+        aggregation.setType(Aggregation.Type.AVG);
+        Aggregation sequential = new Aggregation().setType(Aggregation.Type.AVG);
+        Map<Metric, Series> series = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            Metric metric = Metric.create("test", Map.of("l1", "v" + i));
+            List<Value> values = new ArrayList<>();
+            for (int j = 0; j < 5000; j++) {
+                values.add(Value.create(TIMESTAMP + j * 1000L, j % 100 + i));
+            }
+            Series metricSeries = Series.create(metric.getName(), values);
+            series.put(metric, metricSeries);
+            sequential.add(metric, metricSeries);
+        }
+        aggregation.addParallel(series);
+        Map<String, Matrix> expected = new HashMap<>();
+        sequential.toMatrixes().forEach(matrix -> expected.put(matrix.getMetric().getHash(), matrix));
+        Collection<Matrix> matrixes = aggregation.toMatrixes();
+        assertEquals(20, matrixes.size());
+        for (Matrix matrix : matrixes) {
+            List<Value> expectedValues = expected.get(matrix.getMetric().getHash()).getValues();
+            assertEquals(expectedValues.size(), matrix.getCount());
+            for (int i = 0; i < expectedValues.size(); i++) {
+                assertEquals(expectedValues.get(i).getTimestamp(), matrix.getValues().get(i).getTimestamp());
+                assertEquals(expectedValues.get(i).asDouble(), matrix.getValues().get(i).asDouble(), 0.001);
+            }
+        }
+    }
+
     private void addValues(Metric metric) {
         aggregation.add(metric, Value.create(TIMESTAMP + 1000, 1));
         aggregation.add(metric, Value.create(TIMESTAMP + 10000, 2));
@@ -0,0 +1,61 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BucketMapTest {
+
+    @Test
+    void add() {
+        BucketMap buckets = new BucketMap();
+        int slot = buckets.slot(10);
+        assertEquals(0, buckets.getCount(slot));
+        buckets.add(slot, 1000, 5);
+        buckets.add(buckets.slot(10), 3000, 1);
+        buckets.add(buckets.slot(10), 2000, 3);
+        slot = buckets.slot(10);
+        assertEquals(1, buckets.size());
+        assertEquals(9, buckets.getSum(slot));
+        assertEquals(1, buckets.getMinimum(slot));
+        assertEquals(5, buckets.getMaximum(slot));
+        assertEquals(3, buckets.getAverage(slot));
+        assertEquals(5, buckets.getFirst(slot));
+        assertEquals(1, buckets.getLast(slot));
+        assertEquals(3, buckets.getCount(slot));
+    }
+
+    @Test
+    void merge() {
+        BucketMap buckets1 = new BucketMap();
+        buckets1.add(buckets1.slot(1), 1000, 2);
+        buckets1.add(buckets1.slot(1), 2000, 4);
+        BucketMap buckets2 = new BucketMap();
+        buckets2.add(buckets2.slot(1), 500, 9);
+        buckets2.add(buckets2.slot(2), 3000, 1);
+        buckets1.merge(buckets2);
+        assertEquals(2, buckets1.size());
+        int slot = buckets1.slot(1);
+        assertEquals(5, buckets1.getAverage(slot));
+        assertEquals(2, buckets1.getMinimum(slot));
+        assertEquals(9, buckets1.getMaximum(slot));
+        assertEquals(9, buckets1.getFirst(slot));
+        assertEquals(4, buckets1.getLast(slot));
+        assertEquals(3, buckets1.getCount(slot));
+    }
+
+    @Test
+    void grow() {
+        BucketMap buckets = new BucketMap();
+        for (int i = 999; i >= 0; i--) {
+            buckets.add(buckets.slot(i), i, i * 2);
+        }
+        assertEquals(1000, buckets.size());
+        int[] slots = buckets.sortedSlots();
+        assertEquals(1000, slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            assertEquals(i, buckets.getKey(slots[i]));
+            assertEquals(i * 2, buckets.getSum(slots[i]));
+        }
+    }
+}
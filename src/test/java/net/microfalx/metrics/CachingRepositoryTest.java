@@ -0,0 +1,114 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.time.Duration.ofHours;
+import static java.time.Duration.ofMinutes;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CachingRepositoryTest {
+
+    private static final long START = Instant.now().toEpochMilli() / 3_600_000 * 3_600_000 - 3_600_000;
+
+    private StoreRepository storeRepository;
+    private final List<Query> queries = new ArrayList<>();
+    private CachingRepository repository;
+
+    @BeforeEach
+    void setup() {
+        SeriesStore store = SeriesStore.memory().setRetention(ofHours(4));
+        Metric metric1 = Metric.create("latency", "host", "h1");
+        Metric metric2 = Metric.create("latency", "host", "h2");
+        for (int i = 0; i <= 30 * 6; i++) {
+            store.add(metric1, Value.create(START + i * 10_000L, i));
+            store.add(metric2, Value.create(START + i * 10_000L, 2 * i));
+        }
+        storeRepository = StoreRepository.create(store);
+        repository = CachingRepository.create(new AbstractRepository() {
+
+            @Override
+            public boolean supports(Query query) {
+                return storeRepository.supports(query);
+            }
+
+            @Override
+            public Result query(Query query) {
+                queries.add(query);
+                return storeRepository.query(query);
+            }
+        }, 2);
+    }
+
+    @Test
+    void sameQuery() {
+        Query query = createQuery("latency", 0, 20);
+        assertResult(storeRepository.query(query), repository.query(query));
+        assertResult(storeRepository.query(query), repository.query(query));
+        assertEquals(1, repository.getMissCount());
+        assertEquals(1, repository.getHitCount());
+        assertEquals(2, queries.size());
+        assertEquals(START + ofMinutes(20).toMillis(), queries.get(1).getStartTime().toInstant().toEpochMilli());
+    }
+
+    @Test
+    void slidingQuery() {
+        repository.query(createQuery("latency", 0, 20));
+        Query query = createQuery("latency", 5, 25);
+        assertResult(storeRepository.query(query), repository.query(query));
+        assertEquals(2, queries.size());
+        assertEquals(START + ofMinutes(20).toMillis(), queries.get(1).getStartTime().toInstant().toEpochMilli());
+        assertEquals(1, repository.getHitCount());
+    }
+
+    @Test
+    void olderQuery() {
+        repository.query(createQuery("latency", 5, 20));
+        Query query = createQuery("latency", 0, 20);
+        assertResult(storeRepository.query(query), repository.query(query));
+        assertEquals(2, repository.getMissCount());
+    }
+
+    @Test
+    void eviction() {
+        repository.query(createQuery("latency", 0, 20));
+        repository.query(createQuery("latency{host=\"h1\"}", 0, 20));
+        repository.query(createQuery("latency{host=\"h2\"}", 0, 20));
+        assertEquals(2, repository.getSize());
+        repository.query(createQuery("latency", 0, 20));
+        assertEquals(4, repository.getMissCount());
+    }
+
+    private void assertResult(Result expected, Result actual) {
+        assertEquals(Result.Type.MATRIX, actual.getType());
+        assertEquals(expected.getMatrixes().size(), actual.getMatrixes().size());
+        Map<Metric, Matrix> matrixes = new HashMap<>();
+        actual.getMatrixes().forEach(matrix -> matrixes.put(matrix.getMetric(), matrix));
+        for (Matrix matrix : expected.getMatrixes()) {
+            List<Value> values = matrixes.get(matrix.getMetric()).getValues();
+            assertEquals(matrix.getCount(), values.size());
+            for (int index = 0; index < values.size(); index++) {
+                assertEquals(matrix.getValues().get(index).getTimestamp(), values.get(index).getTimestamp());
+                assertEquals(matrix.getValues().get(index).getValue(), values.get(index).getValue(), 0.001);
+            }
+        }
+    }
+
+    private Query createQuery(String text, int startMinute, int endMinute) {
+        return Query.create(StoreRepository.TYPE, text).withStep(ofMinutes(1))
+                .withStartTime(toDateTime(START + ofMinutes(startMinute).toMillis()))
+                .withEnd(toDateTime(START + ofMinutes(endMinute).toMillis()));
+    }
+
+    private static ZonedDateTime toDateTime(long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,122 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.time.Duration.ofMillis;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingRepositoryTest {
+
+    private final AtomicInteger executions = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final Repository slow = new AbstractRepository() {
+
+        @Override
+        public boolean supports(Query query) {
+            return true;
+        }
+
+        @Override
+        public Result query(Query query) {
+            executions.incrementAndGet();
+            if ("invalid".equals(query.getText())) throw new QueryException("Invalid");
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if ("error".equals(query.getText())) throw new AssertionError("Error");
+            return Result.scalar(query, Value.create(1000, 1));
+        }
+    };
+
+    @Test
+    void queryEquals() {
+        Query query = Query.create("test", "a").withStep(ofMillis(60_000));
+        assertEquals(query, Query.create("test", "a").withStep(ofMillis(60_000)));
+        assertEquals(query.hashCode(), Query.create("test", "a").withStep(ofMillis(60_000)).hashCode());
+        assertNotEquals(query, Query.create("test", "b").withStep(ofMillis(60_000)));
+        assertNotEquals(query, query.withMaxPoints(10));
+        assertEquals(query, query.withTimeOut(ofMillis(50)));
+    }
+
+    @Test
+    void coalesce() throws Exception {
+        CoalescingRepository repository = CoalescingRepository.create(slow);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(executor.submit(() -> repository.query(Query.create("test", "a"))));
+            }
+            while (repository.getExecutionCount() + repository.getCoalescedCount() < 5) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Result> future : futures) {
+                assertEquals(1, future.get(10, TimeUnit.SECONDS).getValue().getValue());
+            }
+            assertEquals(1, executions.get());
+            assertEquals(1, repository.getExecutionCount());
+            assertEquals(4, repository.getCoalescedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void timeOut() throws Exception {
+        CoalescingRepository repository = CoalescingRepository.create(slow);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Result> leader = executor.submit(() -> repository.query(Query.create("test", "a")));
+            while (repository.getExecutionCount() == 0) {
+                Thread.sleep(10);
+            }
+            Result result = repository.query(Query.create("test", "a").withTimeOut(ofMillis(50)));
+            assertFalse(result.isSuccessful());
+            assertTrue(result.getMessage().contains("timed out"));
+            release.countDown();
+            assertTrue(leader.get(10, TimeUnit.SECONDS).isSuccessful());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void error() throws Exception {
+        CoalescingRepository repository = CoalescingRepository.create(slow);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Result> leader = executor.submit(() -> repository.query(Query.create("test", "error")));
+            while (repository.getExecutionCount() == 0) {
+                Thread.sleep(10);
+            }
+            Thread releaser = new Thread(() -> {
+                while (repository.getCoalescedCount() == 0) Thread.onSpinWait();
+                release.countDown();
+            });
+            releaser.start();
+            assertThrows(AssertionError.class, () -> repository.query(Query.create("test", "error")));
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> leader.get(10, TimeUnit.SECONDS));
+            assertTrue(exception.getCause() instanceof AssertionError);
+            assertEquals(1, executions.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failure() {
+        CoalescingRepository repository = CoalescingRepository.create(slow);
+        assertThrows(QueryException.class, () -> repository.query(Query.create("test", "invalid")));
+        assertThrows(QueryException.class, () -> repository.query(Query.create("test", "invalid")));
+        assertEquals(2, executions.get());
+    }
+}
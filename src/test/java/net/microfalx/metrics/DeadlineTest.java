@@ -0,0 +1,112 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadlineTest {
+
+    @Test
+    void noDeadline() {
+        assertNull(Deadline.current());
+        assertEquals(0, Deadline.getRemainingSeconds());
+        Deadline.check();
+    }
+
+    @Test
+    void expired() {
+        try (Deadline deadline = Deadline.start(Duration.ZERO)) {
+            assertTrue(deadline.isExpired());
+            assertThrows(QueryTimeoutException.class, Deadline::check);
+            Deadline.check(1);
+            assertThrows(QueryTimeoutException.class, () -> Deadline.check(1024));
+        }
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    void nested() {
+        try (Deadline outer = Deadline.start(Duration.ofSeconds(5))) {
+            try (Deadline inner = Deadline.start(Duration.ofMinutes(1))) {
+                assertSame(inner, Deadline.current());
+                assertTrue(inner.getRemaining().compareTo(Duration.ofSeconds(5)) <= 0);
+                assertEquals(5, Deadline.getRemainingSeconds());
+            }
+            assertSame(outer, Deadline.current());
+        }
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    void interrupted() {
+        Thread.currentThread().interrupt();
+        try {
+            Deadline.check();
+            try (Deadline ignored = Deadline.start(Duration.ofMinutes(1))) {
+                assertThrows(QueryTimeoutException.class, Deadline::check);
+            }
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    void inherit() throws Exception {
+        assertNull(Deadline.inherit(null));
+        try (Deadline deadline = Deadline.start(Duration.ZERO)) {
+            CompletableFuture.runAsync(() -> {
+                try (Deadline inherited = Deadline.inherit(deadline)) {
+                    assertSame(inherited, Deadline.current());
+                    assertThrows(QueryTimeoutException.class, Deadline::check);
+                }
+                assertNull(Deadline.current());
+            }).get();
+        }
+    }
+
+    @Test
+    void nestedInheritedDeadline() throws Exception {
+        AtomicReference<Deadline> parent = new AtomicReference<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread owner = new Thread(() -> {
+            try (Deadline deadline = Deadline.start(Duration.ofMinutes(1))) {
+                parent.set(deadline);
+                started.countDown();
+                while (!stopped.get()) Thread.onSpinWait();
+            }
+        });
+        owner.start();
+        try {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            try (Deadline inherited = Deadline.inherit(parent.get()); Deadline nested = Deadline.start(Duration.ofMinutes(5))) {
+                assertEquals(inherited.getRemaining().toMinutes(), nested.getRemaining().toMinutes());
+                Deadline.check();
+                owner.interrupt();
+                assertThrows(QueryTimeoutException.class, Deadline::check);
+            }
+        } finally {
+            stopped.set(true);
+            owner.join();
+        }
+    }
+
+    @Test
+    void watch() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        try (Deadline.Watch ignored = Deadline.watch(cancelled::countDown)) {
+            assertFalse(cancelled.await(100, TimeUnit.MILLISECONDS));
+        }
+        try (Deadline ignored = Deadline.start(Duration.ofMillis(10));
+             Deadline.Watch ignoredWatch = Deadline.watch(cancelled::countDown)) {
+            assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DefaultSeriesTest {
 
@@ -93,6 +94,15 @@ class DefaultSeriesTest {
         assertEquals(2.5, series.getWeight(), 0.001);
     }
 
+    @Test
+    public void estimatedSize() {
+        Series series = createDefault();
+        long size = series.getEstimatedSize();
+        series.add(Value.create(START_TIMESTAMP + 5, 1));
+        assertTrue(series.getEstimatedSize() > size);
+        assertTrue(series.compact().getEstimatedSize() < series.getEstimatedSize());
+    }
+
     @Test
     public void compact() {
         Series series = createDefault();
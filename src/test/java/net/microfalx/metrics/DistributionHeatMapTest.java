@@ -0,0 +1,60 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DistributionHeatMapTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    private final DistributionHeatMap heatMap = DistributionHeatMap.create("latency", Duration.ofSeconds(10),
+            Duration.ofMinutes(1));
+
+    @Test
+    void buckets() {
+        for (double value = 0.001; value < 1_000_000; value *= 1.07) {
+            int bucket = heatMap.getBucket(value);
+            assertTrue(heatMap.getLowerBound(bucket) <= value);
+            if (bucket < heatMap.getBucketCount() - 1) assertTrue(heatMap.getLowerBound(bucket + 1) > value);
+            assertTrue(value < heatMap.getLowerBound(bucket) * 1.125 + 1e-9);
+        }
+        assertEquals(0, heatMap.getBucket(0));
+        assertEquals(0, heatMap.getBucket(-1));
+        assertEquals(heatMap.getBucketCount() - 1, heatMap.getBucket(Double.MAX_VALUE));
+    }
+
+    @Test
+    void record() {
+        assertTrue(heatMap.record(START, Duration.ofMillis(10)));
+        assertTrue(heatMap.record(START + 1_000, 10.5));
+        assertTrue(heatMap.record(START + 20_000, 100, 5));
+        assertEquals(2, heatMap.getCount(START, heatMap.getBucket(10)));
+        assertEquals(5, heatMap.getCount(START + 25_000, heatMap.getBucket(100)));
+        assertEquals(0, heatMap.getCount(START + 10_000, heatMap.getBucket(100)));
+        HeatMap map = heatMap.toHeatMap();
+        assertEquals("latency", map.getName());
+        List<Series> series = map.getSeries();
+        assertEquals(heatMap.getBucket(100) - heatMap.getBucket(10) + 1, series.size());
+        assertEquals("10", series.get(0).getName());
+        assertEquals(2, series.get(0).getFirst().get().getValue(), 0.001);
+        assertEquals(5, series.get(series.size() - 1).getFirst().get().getValue(), 0.001);
+        assertTrue(series.get(1).isEmpty());
+    }
+
+    @Test
+    void slide() {
+        for (int i = 0; i < 10; i++) {
+            heatMap.record(START + i * 10_000L, i + 1);
+        }
+        assertFalse(heatMap.record(START, 1));
+        assertEquals(0, heatMap.getCount(START, heatMap.getBucket(1)));
+        assertEquals(1, heatMap.getCount(START + 90_000, heatMap.getBucket(10)));
+        heatMap.record(START + 1_000_000, 1);
+        assertEquals(0, heatMap.getCount(START + 90_000, heatMap.getBucket(10)));
+        assertEquals(1, heatMap.toHeatMap().getSeries().size());
+    }
+}
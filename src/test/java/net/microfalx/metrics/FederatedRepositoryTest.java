@@ -0,0 +1,120 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static java.time.Duration.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FederatedRepositoryTest {
+
+    private static final long START = Instant.now().toEpochMilli() / 3_600_000 * 3_600_000 - 3_600_000;
+
+    private StoreRepository repository1;
+    private StoreRepository repository2;
+
+    @BeforeEach
+    void setup() {
+        SeriesStore store1 = SeriesStore.memory().setRetention(ofHours(4));
+        SeriesStore store2 = SeriesStore.memory().setRetention(ofHours(4));
+        Metric metric1 = Metric.create("latency", "host", "h1");
+        Metric metric2 = Metric.create("latency", "host", "h2");
+        for (int i = 0; i < 20 * 6; i++) {
+            store1.add(metric1, Value.create(START + i * 10_000L, 10));
+            store2.add(metric2, Value.create(START + i * 10_000L, 20));
+        }
+        for (int i = 10 * 6; i < 30 * 6; i++) {
+            store2.add(metric1, Value.create(START + i * 10_000L, 10));
+        }
+        repository1 = StoreRepository.create(store1);
+        repository2 = StoreRepository.create(store2);
+    }
+
+    @Test
+    void supports() {
+        FederatedRepository repository = FederatedRepository.create(repository1, new TestRepository());
+        assertTrue(repository.supports(Query.create(StoreRepository.TYPE)));
+        assertTrue(repository.supports(Query.create("test")));
+        assertFalse(repository.supports(Query.create("other")));
+        Result result = repository.query(Query.create("other"));
+        assertFalse(result.isSuccessful());
+        assertNotNull(repository.getLastError());
+    }
+
+    @Test
+    void merge() {
+        FederatedRepository repository = FederatedRepository.create(repository1, repository2);
+        Result result = repository.query(createQuery("latency"));
+        assertTrue(result.isSuccessful());
+        assertNull(result.getMessage());
+        Map<String, Matrix> matrixes = new HashMap<>();
+        result.getMatrixes().forEach(matrix -> matrixes.put(matrix.getMetric().getLabel("host"), matrix));
+        assertEquals(2, matrixes.size());
+        assertEquals(30, matrixes.get("h1").getCount());
+        assertEquals(20, matrixes.get("h2").getCount());
+    }
+
+    @Test
+    void partialFailure() {
+        Repository failing = new AbstractRepository() {
+
+            @Override
+            public boolean supports(Query query) {
+                return true;
+            }
+
+            @Override
+            public Result query(Query query) {
+                throw new QueryException("Broken");
+            }
+        };
+        FederatedRepository repository = FederatedRepository.create(repository1, failing);
+        Result result = repository.query(createQuery("latency"));
+        assertTrue(result.isSuccessful());
+        assertEquals(1, result.getMatrixes().size());
+        assertTrue(result.getMessage().contains("Broken"));
+        assertTrue(result.getMessage().contains(QueryException.class.getName()));
+    }
+
+    @Test
+    void timeOut() {
+        Repository slow = new AbstractRepository() {
+
+            @Override
+            public boolean supports(Query query) {
+                return true;
+            }
+
+            @Override
+            public Result query(Query query) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Result.matrix(query, Collections.emptyList());
+            }
+        };
+        FederatedRepository repository = FederatedRepository.create(repository1, slow);
+        long start = System.currentTimeMillis();
+        Result result = repository.query(createQuery("latency").withTimeOut(ofMillis(200)));
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+        assertTrue(result.isSuccessful());
+        assertEquals(1, result.getMatrixes().size());
+        assertTrue(result.getMessage().contains("timed out"));
+    }
+
+    private Query createQuery(String text) {
+        return Query.create(StoreRepository.TYPE, text).withStep(ofMinutes(1))
+                .withStartTime(toDateTime(START)).withEnd(toDateTime(START + ofMinutes(30).toMillis() - 1));
+    }
+
+    private static ZonedDateTime toDateTime(long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,76 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeatMapGridTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    @Test
+    void add() {
+        HeatMapGrid grid = HeatMapGrid.create("service", Duration.ofSeconds(10), Duration.ofMinutes(1));
+        assertEquals(6 * 10_000, grid.getWindow().toMillis());
+        assertTrue(grid.add(Metric.create("requests", "service", "api"), Value.create(START, 1)));
+        assertTrue(grid.add(Metric.create("requests", "service", "api"), Value.create(START + 5_000, 2)));
+        assertTrue(grid.add(Metric.create("requests", "service", "web"), Value.create(START + 20_000, 4)));
+        assertFalse(grid.add(Metric.create("requests"), Value.create(START, 1)));
+        HeatMap heatMap = grid.toHeatMap();
+        assertEquals("service", heatMap.getName());
+        assertEquals(2, heatMap.getSeries().size());
+        Series api = heatMap.getSeries().get(0);
+        assertEquals("api", api.getName());
+        assertEquals(1, api.getCount());
+        assertEquals(3, api.getFirst().get().getValue(), 0.001);
+        assertSame(heatMap, grid.toHeatMap());
+    }
+
+    @Test
+    void slide() {
+        HeatMapGrid grid = HeatMapGrid.create("service", Duration.ofSeconds(10), Duration.ofMinutes(1));
+        Metric metric = Metric.create("requests", "service", "api");
+        for (int i = 0; i < 10; i++) {
+            grid.add(metric, Value.create(START + i * 10_000L, i));
+        }
+        assertFalse(grid.add(metric, Value.create(START, 1)));
+        Series series = grid.toHeatMap().getSeries().get(0);
+        assertEquals(6, series.getCount());
+        assertEquals(4, series.getFirst().get().getValue(), 0.001);
+        assertEquals(9, series.getLast().get().getValue(), 0.001);
+        grid.add(metric, Value.create(START + 100 * 10_000L, 1));
+        assertEquals(1, grid.toHeatMap().getSeries().get(0).getCount());
+    }
+
+    @Test
+    void topLanes() {
+        HeatMapGrid grid = HeatMapGrid.create("host", Duration.ofSeconds(10), Duration.ofMinutes(10), 3);
+        for (int host = 0; host < 20; host++) {
+            Metric metric = Metric.create("requests", "host", "h" + (char) ('a' + host));
+            grid.add(Matrix.create(metric, List.of(Value.create(START, host), Value.create(START + 10_000, host))));
+        }
+        assertEquals(20, grid.getLaneCount());
+        List<String> names = grid.toHeatMap().getSeries().stream().map(Series::getName).collect(Collectors.toList());
+        assertEquals(List.of("hr", "hs", "ht"), names);
+    }
+
+    @Test
+    void recycleLanes() {
+        HeatMapGrid grid = HeatMapGrid.create("pod", Duration.ofSeconds(10), Duration.ofMinutes(1));
+        for (int i = 0; i < 100; i++) {
+            grid.add(Metric.create("requests", "pod", "p" + i), Value.create(START + i * 10_000L, 1));
+            assertTrue(grid.getLaneCount() <= 6);
+        }
+        assertEquals(6, grid.getLaneCount());
+        List<String> names = grid.toHeatMap().getSeries().stream().map(Series::getName).collect(Collectors.toList());
+        assertEquals(List.of("p94", "p95", "p96", "p97", "p98", "p99"), names);
+        grid.add(Metric.create("requests", "pod", "p99"), Value.create(START + 200 * 10_000L, 2));
+        assertEquals(1, grid.getLaneCount());
+        assertEquals(1, grid.toHeatMap().getSeries().size());
+        assertTrue(grid.toString().contains("lanes=1"));
+    }
+}
@@ -0,0 +1,38 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixChunkTest {
+
+    @Test
+    void split() {
+        List<Value> values = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            values.add(Value.create(i * 1000L, i));
+        }
+        List<MatrixChunk> chunks = new ArrayList<>();
+        MatrixChunk.split(Matrix.create(Metric.create("test"), values), 10, chunks::add);
+        assertEquals(3, chunks.size());
+        assertEquals(10, chunks.get(0).getCount());
+        assertEquals(5, chunks.get(2).getCount());
+        assertFalse(chunks.get(1).isLast());
+        assertTrue(chunks.get(2).isLast());
+        assertEquals(12000, chunks.get(1).getTimestamp(2));
+        assertEquals(24, chunks.get(2).getValue(4));
+        assertEquals(10, chunks.get(1).toValues().size());
+    }
+
+    @Test
+    void splitEmpty() {
+        List<MatrixChunk> chunks = new ArrayList<>();
+        MatrixChunk.split(Matrix.empty(Metric.create("test")), 10, chunks::add);
+        assertEquals(1, chunks.size());
+        assertEquals(0, chunks.get(0).getCount());
+        assertTrue(chunks.get(0).isLast());
+    }
+}
@@ -0,0 +1,69 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatrixTest {
+
+    @Test
+    void empty() {
+        Matrix matrix = Matrix.empty(Metric.create("test"));
+        assertEquals(0, matrix.getCount());
+        assertTrue(matrix.getValues().isEmpty());
+        assertFalse(matrix.getAverage().isPresent());
+        assertFalse(matrix.getMinimum().isPresent());
+        assertFalse(matrix.getMaximum().isPresent());
+        assertEquals(0, matrix.getSum());
+    }
+
+    @Test
+    void sorted() {
+        Matrix matrix = Matrix.create(Metric.create("test"), List.of(Value.create(3000, 3),
+                Value.create(1000, 1), Value.create(2000, 8)));
+        assertEquals(3, matrix.getCount());
+        assertEquals(1000, matrix.getTimestamp(0));
+        assertEquals(8, matrix.getValue(1));
+        assertEquals(3000, matrix.getLast().get().getTimestamp());
+        assertEquals(4, matrix.getAverage().getAsDouble(), 0.001);
+        assertEquals(1, matrix.getMinimum().getAsDouble(), 0.001);
+        assertEquals(8, matrix.getMaximum().getAsDouble(), 0.001);
+        assertEquals(12, matrix.getSum(), 0.001);
+    }
+
+    @Test
+    void toSeries() {
+        Metric metric = Metric.create("test");
+        Matrix matrix = Matrix.create(metric, List.of(Value.create(1000, 1), Value.create(2000, 2)));
+        Series series = matrix.toSeries();
+        assertEquals(2, series.getCount());
+        assertEquals(1.5, series.getAverage().getAsDouble(), 0.001);
+        assertEquals(2000, series.get(1).getTimestamp());
+        assertSame(series, series.add(Value.create(1500, 5)));
+        assertEquals(3, series.getCount());
+        assertEquals(2, matrix.getCount());
+        Series sharedSeries = matrix.toSeries("test");
+        Series newSeries = sharedSeries.add(Value.create(1500, 5));
+        assertEquals(2, sharedSeries.getCount());
+        assertEquals(3, newSeries.getCount());
+        assertEquals(5, newSeries.get(1).getValue());
+        Matrix newMatrix = Matrix.create(metric, sharedSeries);
+        assertEquals(2, newMatrix.getCount());
+        assertEquals(2, newMatrix.getValue(1));
+    }
+
+    @Test
+    void addAllToSharedSeries() {
+        Matrix matrix = Matrix.create(Metric.create("test"), List.of(Value.create(1000, 1), Value.create(3000, 3)));
+        AbstractSeries series = (AbstractSeries) matrix.toSeries("test");
+        Series newSeries = series.addAll(List.of(Value.create(4000, 4), Value.create(2000, 2), Value.create(0, 0)));
+        assertEquals(2, series.getCount());
+        assertEquals(5, newSeries.getCount());
+        for (int index = 0; index < 5; index++) {
+            assertEquals(index * 1000, newSeries.get(index).getTimestamp());
+            assertEquals(index, newSeries.get(index).getValue(), 0.001);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryParserTest {
+
+    @Test
+    void selector() {
+        QueryPlan plan = QueryParser.parse("requests{service=\"api\", method!=\"GET\", path=~\"/v1/.*\", host!~'test.*'}");
+        assertTrue(plan instanceof QueryPlan.Selector);
+        QueryPlan.Selector selector = (QueryPlan.Selector) plan;
+        assertEquals(5, selector.getMatchers().size());
+        assertTrue(selector.matches(Metric.create("requests", "service", "api", "path", "/v1/users")));
+        assertFalse(selector.matches(Metric.create("requests", "service", "web", "path", "/v1/users")));
+        assertFalse(selector.matches(Metric.create("requests", "service", "api", "path", "/v2/users")));
+        assertFalse(selector.matches(Metric.create("errors", "service", "api", "path", "/v1/users")));
+    }
+
+    @Test
+    void selectorByName() {
+        QueryPlan.Selector selector = (QueryPlan.Selector) QueryParser.parse("{__name__=~\"req.*\"}");
+        assertTrue(selector.matches(Metric.create("requests")));
+        assertFalse(selector.matches(Metric.create("errors")));
+    }
+
+    @Test
+    void rangeFunction() {
+        QueryPlan plan = QueryParser.parse("rate(requests{service=\"api\"}[5m])");
+        assertTrue(plan instanceof QueryPlan.RangeFunction);
+        assertEquals("rate({__name__=\"requests\", service=\"api\"}[PT5M])", plan.toString());
+    }
+
+    @Test
+    void aggregation() {
+        assertEquals("sum by (service) (rate({__name__=\"requests\"}[PT1M]))",
+                QueryParser.parse("sum by (service) (rate(requests[1m]))").toString());
+        assertEquals("avg by (service, method) ({__name__=\"requests\"})",
+                QueryParser.parse("avg(requests) by (service, method)").toString());
+        assertEquals("max ({__name__=\"sum\"})", QueryParser.parse("max(sum)").toString());
+    }
+
+    @Test
+    void top() {
+        assertEquals("topk(5, {__name__=\"latency\"}, max)", QueryParser.parse("topk(5, latency)").toString());
+        assertEquals("topk(3, sum by (service) ({__name__=\"latency\"}), avg)",
+                QueryParser.parse("topk(3, sum by (service) (latency), avg)").toString());
+        assertThrows(QueryException.class, () -> QueryParser.parse("topk(latency)"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("topk(0, latency)"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("topk(5, latency, last)"));
+    }
+
+    @Test
+    void invalid() {
+        assertThrows(QueryException.class, () -> QueryParser.parse(""));
+        assertThrows(QueryException.class, () -> QueryParser.parse("requests{service=api}"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("rate(requests[99999999999999999999s])"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("rate(requests[9999999999999999w])"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("rate(requests)"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("sum(requests"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("requests{path=~\"(\"}"));
+        assertThrows(QueryException.class, () -> QueryParser.parse("requests extra"));
+    }
+}
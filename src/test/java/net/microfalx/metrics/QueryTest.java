@@ -0,0 +1,38 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+
+import static java.time.Duration.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QueryTest {
+
+    private static final ZonedDateTime END = ZonedDateTime.now();
+
+    @Test
+    void defaultStep() {
+        Query query = Query.create("test").withStartTime(END.minusHours(24)).withEnd(END);
+        assertEquals(Query.DEFAULT_MAX_POINTS, query.getMaxPoints());
+        assertEquals(ofMinutes(30), query.getStep());
+        assertEquals(ofSeconds(5), query.withStartTime(END.minusSeconds(30)).getStep());
+    }
+
+    @Test
+    void maxPoints() {
+        Query query = Query.create("test").withStartTime(END.minusDays(7)).withEnd(END).withMaxPoints(100);
+        assertEquals(ofMinutes(105), query.getStep());
+        assertEquals(ofMinutes(1), query.withStep(ofMinutes(1)).getStep());
+        assertEquals(ofMinutes(105), MetricUtils.getStep(query.withStep(ofMinutes(1))));
+        assertEquals(ofHours(4), MetricUtils.getStep(query.withStep(ofHours(4))));
+    }
+
+    @Test
+    void explicitStep() {
+        Query query = Query.create("test").withStartTime(END.minusDays(7)).withEnd(END);
+        assertEquals(ofMinutes(1), query.withStep(ofMinutes(1)).getStep());
+        assertEquals(ofMinutes(1), MetricUtils.getStep(query.withStep(ofMinutes(1))));
+        assertEquals(ofDays(1), query.withStep(ofDays(1)).getStep());
+    }
+}
@@ -18,6 +18,7 @@ import java.net.URI;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -27,6 +28,8 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SeriesMemoryStoreTest {
 
@@ -79,7 +82,7 @@ class SeriesMemoryStoreTest {
         store.add(metric3, Value.create(LocalDateTime.now(), 5));
         store.add(metric3, Value.create(LocalDateTime.now(), 11));
         double value = store.getAverage(metric3, Duration.ofHours(1)).orElse(0);
-        assertEquals(3.75, value, 0.001);
+        assertEquals(3.6, value, 0.001);
     }
 
     @Test
@@ -100,6 +103,224 @@ class SeriesMemoryStoreTest {
         assertEquals(2, series.getAverage().getAsDouble(), 0.01);
     }
 
+    @Test
+    void addUpdatesIndexes() {
+        store.setRollups(Rollup.defaults());
+        store.add(getStores(), false);
+        assertEquals(5, store.getLast(metric1).orElseThrow().getValue(), 0.001);
+        Series maximum = store.get(metric1, START.minusMinutes(1), START.plusMinutes(1), Duration.ofMinutes(1), Aggregation.Type.MAX);
+        assertTrue(maximum.getCount() > 0);
+        assertEquals(5, maximum.getMaximum().getAsDouble(), 0.001);
+    }
+
+    @Test
+    void addToCompactedSeries() {
+        SeriesMemoryStore memoryStore = new SeriesMemoryStore().setMemoryBudget(25_000);
+        generateMetrics(memoryStore, 10, 100);
+        SeriesStore source = SeriesStore.memory();
+        source.add(Metric.create("m0"), Value.create(END, 1));
+        memoryStore.add(source);
+        assertEquals(101, memoryStore.get(Metric.create("m0")).getCount());
+        assertEquals(1, memoryStore.getLast(Metric.create("m0")).orElseThrow().getValue(), 0.001);
+    }
+
+    @Test
+    void addManyMetrics() {
+        Collection<SeriesStore> stores = new ArrayList<>();
+        for (int i = 0; i < STORE_COUNT; i++) {
+            SeriesStore memory = SeriesStore.memory();
+            stores.add(memory);
+            for (int j = 0; j < 100; j++) {
+                memory.add(Metric.create("m" + j), Value.create(START.plusSeconds(STORE_COUNT - i), j));
+            }
+        }
+        store.add(stores, false);
+        assertEquals(100, store.getMetrics().size());
+        Series series = store.get(Metric.create("m10"));
+        assertEquals(STORE_COUNT, series.getCount());
+        assertEquals(10, series.getAverage().getAsDouble(), 0.01);
+        assertTrue(MetricUtils.isSorted(series.getValues()));
+    }
+
+    @Test
+    void estimatedSize() {
+        assertEquals(0, store.getEstimatedSize());
+        generateMetric1();
+        store.add(metric2, Value.create(START, 1));
+        assertTrue(store.getEstimatedSize() > 0);
+        Map<Metric, Long> sizes = store.getEstimatedSizes();
+        assertEquals(2, sizes.size());
+        assertEquals(metric1, sizes.keySet().iterator().next());
+        assertEquals(store.getEstimatedSize(), sizes.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    void memoryBudgetCompacts() {
+        SeriesMemoryStore memoryStore = new SeriesMemoryStore().setMemoryBudget(25_000);
+        generateMetrics(memoryStore, 10, 100);
+        assertTrue(memoryStore.getSeries(Metric.create("m0")) instanceof CompactSeries);
+        assertTrue(memoryStore.getSeries(Metric.create("m9")) instanceof DefaultSeries);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(100, memoryStore.get(Metric.create("m" + i)).getCount());
+        }
+        assertTrue(memoryStore.getEstimatedSize() <= memoryStore.getMemoryBudget());
+        Series compacted = memoryStore.get(Metric.create("m0"));
+        memoryStore.add(Metric.create("m0"), Value.create(END, 1));
+        assertTrue(memoryStore.getSeries(Metric.create("m0")) instanceof DefaultSeries);
+        assertEquals(101, compacted.getCount());
+        assertEquals(101, memoryStore.get(Metric.create("m0")).getCount());
+    }
+
+    @Test
+    void getReturnsLiveSeries() {
+        store.add(metric1, Value.create(START, 1));
+        Series series = store.get(metric1);
+        store.add(metric1, Value.create(END, 2));
+        assertEquals(2, series.getCount());
+        assertSame(series, series.add(Value.create(END.plusMinutes(1), 3)));
+        assertEquals(3, store.get(metric1).getCount());
+        assertEquals(3, store.getLast(metric1).get().getValue(), 0.001);
+        assertTrue(store.getMetrics().contains(metric1));
+        Series empty = store.get(metric2);
+        assertTrue(empty.isEmpty());
+        assertEquals(1, store.getMetrics().size());
+    }
+
+    @Test
+    void removeKeepsValuesAddedLater() {
+        SeriesMemoryStore memoryStore = new SeriesMemoryStore();
+        for (int i = 0; i < 5; i++) {
+            memoryStore.add(metric1, Value.create(START.plusMinutes(i), i));
+        }
+        List<Value> values = memoryStore.getOlder(metric1, Value.create(START.plusMinutes(3), 0).getTimestamp());
+        assertEquals(3, values.size());
+        memoryStore.add(metric1, Value.create(START.plusSeconds(30), 10));
+        memoryStore.remove(metric1, values);
+        List<Value> remainingValues = memoryStore.get(metric1).getValues();
+        assertEquals(3, remainingValues.size());
+        assertTrue(remainingValues.stream().anyMatch(value -> value.getValue() == 10));
+        assertEquals(3, remainingValues.get(0).getValue(), 0.001);
+        memoryStore.remove(metric1, memoryStore.getOlder(metric1, Value.create(START.plusMinutes(4), 0).getTimestamp()));
+        assertEquals(1, memoryStore.get(metric1).getCount());
+        assertEquals(4, memoryStore.get(metric1).getFirst().get().getValue(), 0.001);
+    }
+
+    @Test
+    void memoryBudgetEvicts() {
+        SeriesMemoryStore memoryStore = new SeriesMemoryStore().setMemoryBudget(5_000);
+        generateMetrics(memoryStore, 10, 100);
+        assertTrue(memoryStore.getEstimatedSize() <= memoryStore.getMemoryBudget());
+        Series series = memoryStore.get(Metric.create("m9"));
+        assertTrue(series.getCount() > 0);
+        assertEquals(99, series.getLast().get().getValue(), 0.001);
+    }
+
+    @Test
+    void last() {
+        assertTrue(store.getLast(metric1).isEmpty());
+        store.add(metric1, Value.create(START, 1));
+        store.add(metric1, Value.create(START.plusSeconds(10), 2));
+        store.add(metric1, Value.create(START.plusSeconds(5), 3));
+        store.add(metric2, Value.create(START, 4));
+        assertEquals(2, store.getLast(metric1).get().getValue());
+        Map<Metric, Value> values = store.getLast(metric -> metric.getName().startsWith("g"));
+        assertEquals(2, values.size());
+        assertEquals(4, values.get(metric2).getValue());
+        assertEquals(0, store.getLast(metric -> false).size());
+        store.clear();
+        assertTrue(store.getLast(metric1).isEmpty());
+    }
+
+    @Test
+    void top() {
+        Metric metric4 = Metric.create("g4");
+        store.add(metric1, Value.create(START, 5));
+        store.add(metric1, Value.create(START.plusSeconds(10), 1));
+        store.add(metric2, Value.create(START, 3));
+        store.add(metric2, Value.create(START.plusSeconds(10), 4));
+        store.add(metric4, Value.create(START, 2));
+        store.add(metric4, Value.create(END.plusMinutes(1), 100));
+        Map<Metric, Double> top = store.getTop(metric -> metric.getName().startsWith("g"), START, END, Aggregation.Type.MAX, 2);
+        assertEquals(List.of(metric1, metric2), new ArrayList<>(top.keySet()));
+        assertEquals(5, top.get(metric1), 0.001);
+        top = store.getTop(metric -> metric.getName().startsWith("g"), START, END, Aggregation.Type.SUM, 1);
+        assertEquals(List.of(metric2), new ArrayList<>(top.keySet()));
+        top = store.getTop(metric -> true, START, END.plusMinutes(1), Aggregation.Type.AVG, 10);
+        assertEquals(List.of(metric4, metric2, metric1), new ArrayList<>(top.keySet()));
+        assertEquals(51, top.get(metric4), 0.001);
+        assertThrows(IllegalArgumentException.class, () -> store.getTop(metric -> true, START, END, Aggregation.Type.P99, 1));
+    }
+
+    @Test
+    void topFromRollups() {
+        store.setRollups(Rollup.defaults());
+        LocalDateTime start = START.truncatedTo(ChronoUnit.HOURS);
+        for (int i = 0; i < 600; i++) {
+            store.add(metric1, Value.create(start.plusSeconds(i), i % 60));
+            store.add(metric2, Value.create(start.plusSeconds(i), 30));
+        }
+        Map<Metric, Double> top = store.getTop(metric -> true, start, start.plusMinutes(10).minusNanos(1_000_000),
+                Aggregation.Type.MAX, 1);
+        assertEquals(List.of(metric1), new ArrayList<>(top.keySet()));
+        assertEquals(59, top.get(metric1), 0.001);
+        top = store.getTop(metric -> true, start, start.plusMinutes(10).minusNanos(1_000_000), Aggregation.Type.AVG, 1);
+        assertEquals(List.of(metric2), new ArrayList<>(top.keySet()));
+    }
+
+    @Test
+    void rollups() {
+        store.setRollups(Rollup.defaults());
+        LocalDateTime start = START.truncatedTo(ChronoUnit.HOURS);
+        for (int i = 0; i < 600; i++) {
+            store.add(metric1, Value.create(start.plusSeconds(i), i % 60));
+        }
+        Series sum = store.get(metric1, start, start.plusMinutes(10), Duration.ofMinutes(5), Aggregation.Type.SUM);
+        assertEquals(2, sum.getCount());
+        assertEquals(5 * 1770, sum.getFirst().orElseThrow().asFloat(), 0.001);
+        Series average = store.get(metric1, start, start.plusMinutes(10), Duration.ofMinutes(1), Aggregation.Type.AVG);
+        assertEquals(10, average.getCount());
+        assertEquals(29.5, average.getLast().orElseThrow().asFloat(), 0.001);
+        Series maximum = store.get(metric1, start, start.plusMinutes(10), Duration.ofMinutes(10), Aggregation.Type.MAX);
+        assertEquals(1, maximum.getCount());
+        assertEquals(59, maximum.getFirst().orElseThrow().asFloat(), 0.001);
+    }
+
+    @Test
+    void rollupsOnlyAfterEnabled() {
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+        store.add(metric1, Value.create(start, 1));
+        store.setRollups(Rollup.defaults());
+        store.add(metric1, Value.create(start.plusSeconds(1), 2));
+        Series count = store.get(metric1, start, start.plusSeconds(59), Duration.ofMinutes(1), Aggregation.Type.COUNT);
+        assertEquals(2, count.getFirst().orElseThrow().asFloat(), 0.001);
+    }
+
+    @Test
+    void rollupsAreAllocatedLazily() {
+        SeriesMemoryStore memoryStore = new SeriesMemoryStore();
+        memoryStore.add(metric1, Value.create(START, 1));
+        long size = memoryStore.getEstimatedSize();
+        memoryStore.setRollups(Rollup.defaults());
+        memoryStore.add(metric1, Value.create(START.plusSeconds(1), 2));
+        long rollupSize = memoryStore.getRollupStore().getEstimatedSize();
+        assertTrue(rollupSize > 0 && rollupSize < 10_000);
+        assertTrue(memoryStore.getEstimatedSize() >= size + rollupSize);
+        assertEquals(memoryStore.getEstimatedSize(), (long) memoryStore.getEstimatedSizes().get(metric1));
+    }
+
+    @Test
+    void rollupsWithUnalignedStart() {
+        store.setRollups(Rollup.defaults());
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).plusMinutes(2);
+        for (int i = 0; i < 18; i++) {
+            store.add(metric1, Value.create(start.plusSeconds(i * 10L), 1));
+        }
+        Series count = store.get(metric1, start.plusSeconds(30), start.plusMinutes(3), Duration.ofMinutes(1), Aggregation.Type.COUNT);
+        assertEquals(3, count.getFirst().orElseThrow().asFloat(), 0.001);
+        count = store.get(metric1, start, start.plusMinutes(3), Duration.ofMinutes(1), Aggregation.Type.COUNT);
+        assertEquals(6, count.getFirst().orElseThrow().asFloat(), 0.001);
+    }
+
     @Test
     void serialize() {
         store = new SeriesMemoryStore();
@@ -124,6 +345,15 @@ class SeriesMemoryStoreTest {
         }
     }
 
+    private void generateMetrics(SeriesStore store, int metricCount, int valueCount) {
+        for (int i = 0; i < metricCount; i++) {
+            Metric metric = Metric.create("m" + i);
+            for (int j = 0; j < valueCount; j++) {
+                store.add(metric, Value.create(START.plusSeconds(j), j));
+            }
+        }
+    }
+
     private Collection<SeriesStore> getStores() {
         Collection<SeriesStore> stores = new ArrayList<>();
         for (int i = 1; i <= STORE_COUNT; i++) {
@@ -0,0 +1,64 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SketchTest {
+
+    @Test
+    void empty() {
+        assertTrue(Double.isNaN(new Sketch().getQuantile(0.5)));
+    }
+
+    @Test
+    void quantiles() {
+        Sketch sketch = new Sketch();
+        for (int i = 1; i <= 10_000; i++) {
+            sketch.add(i);
+        }
+        assertEquals(10_000, sketch.getCount());
+        assertEquals(5000, sketch.getQuantile(0.5), 5000 * Sketch.DEFAULT_ACCURACY);
+        assertEquals(9900, sketch.getQuantile(0.99), 9900 * Sketch.DEFAULT_ACCURACY);
+        assertEquals(1, sketch.getQuantile(0), Sketch.DEFAULT_ACCURACY);
+    }
+
+    @Test
+    void negativeAndZero() {
+        Sketch sketch = new Sketch();
+        sketch.add(-10);
+        sketch.add(0);
+        sketch.add(10);
+        assertEquals(-10, sketch.getQuantile(0), 10 * Sketch.DEFAULT_ACCURACY);
+        assertEquals(0, sketch.getQuantile(0.5));
+        assertEquals(10, sketch.getQuantile(1), 10 * Sketch.DEFAULT_ACCURACY);
+    }
+
+    @Test
+    void merge() {
+        Sketch sketch1 = new Sketch();
+        Sketch sketch2 = new Sketch();
+        for (int i = 1; i <= 1000; i++) {
+            if (i % 2 == 0) {
+                sketch1.add(i);
+            } else {
+                sketch2.add(i);
+            }
+        }
+        sketch1.merge(sketch2);
+        assertEquals(1000, sketch1.getCount());
+        assertEquals(950, sketch1.getQuantile(0.95), 950 * Sketch.DEFAULT_ACCURACY);
+    }
+
+    @Test
+    void bounded() {
+        Sketch sketch = new Sketch();
+        for (int i = -300; i <= 300; i++) {
+            sketch.add(Math.pow(10, i / 10.0));
+        }
+        assertTrue(sketch.getBinCount() <= Sketch.DEFAULT_MAXIMUM_BINS);
+        assertEquals(601, sketch.getCount());
+        assertEquals(1e30, sketch.getQuantile(1), 1e30 * Sketch.DEFAULT_ACCURACY);
+    }
+}
@@ -0,0 +1,209 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.Duration.ofHours;
+import static java.time.Duration.ofMinutes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StoreRepositoryTest {
+
+    private static final long START = Instant.now().toEpochMilli() / 3_600_000 * 3_600_000 - 3_600_000;
+    private static final int MINUTES = 30;
+
+    private SeriesStore store;
+    private StoreRepository repository;
+
+    @BeforeEach
+    void setup() {
+        store = SeriesStore.memory().setRetention(ofHours(4));
+        repository = StoreRepository.create(store);
+        addValues(Metric.create("latency", "service", "api", "host", "h1"), 10);
+        addValues(Metric.create("latency", "service", "api", "host", "h2"), 20);
+        addValues(Metric.create("latency", "service", "web", "host", "h1"), 30);
+        Metric requests = Metric.create("requests", "service", "api").withType(Metric.Type.COUNTER);
+        for (int i = 0; i <= MINUTES * 6; i++) {
+            store.add(requests, Value.create(START + i * 10_000L, i * 60));
+        }
+    }
+
+    @Test
+    void supports() {
+        assertTrue(repository.supports(Query.create(StoreRepository.TYPE)));
+        assertFalse(repository.supports(Query.create("test")));
+    }
+
+    @Test
+    void selector() {
+        Result result = repository.query(createQuery("latency{service=\"api\"}"));
+        assertEquals(Result.Type.MATRIX, result.getType());
+        assertEquals(2, result.getMatrixes().size());
+        for (Matrix matrix : result.getMatrixes()) {
+            assertEquals(MINUTES / 5, matrix.getCount());
+        }
+    }
+
+    @Test
+    void sumBy() {
+        Result result = repository.query(createQuery("sum by (service) (latency)"));
+        Map<String, Matrix> matrixes = new HashMap<>();
+        result.getMatrixes().forEach(matrix -> matrixes.put(matrix.getMetric().getLabel("service"), matrix));
+        assertEquals(2, matrixes.size());
+        assertEquals(30, matrixes.get("api").getFirst().get().getValue(), 0.001);
+        assertEquals(30, matrixes.get("web").getFirst().get().getValue(), 0.001);
+    }
+
+    @Test
+    void sum() {
+        Result result = repository.query(createQuery("max(latency)"));
+        assertEquals(1, result.getMatrixes().size());
+        assertEquals(30, result.getMatrixes().iterator().next().getLast().get().getValue(), 0.001);
+    }
+
+    @Test
+    void aggregateAcrossNames() {
+        Result result = repository.query(createQuery("max({__name__=~\"latency|requests\"})"));
+        assertEquals(1, result.getMatrixes().size());
+        assertEquals(Metric.UNNAMED, result.getMatrixes().iterator().next().getMetric().getName());
+    }
+
+    @Test
+    void rate() {
+        Result result = repository.query(createQuery("rate(requests[1m])"));
+        assertEquals(1, result.getMatrixes().size());
+        Matrix matrix = result.getMatrixes().iterator().next();
+        assertEquals(6, matrix.getLast().get().getValue(), 0.001);
+    }
+
+    @Test
+    void avgOverTime() {
+        Result result = repository.query(createQuery("avg_over_time(latency{host=\"h2\"}[5m])"));
+        assertEquals(1, result.getMatrixes().size());
+        assertEquals(20, result.getMatrixes().iterator().next().getLast().get().getValue(), 0.001);
+    }
+
+    @Test
+    void maxPoints() {
+        Result result = repository.query(createQuery("latency{host=\"h2\"}").withMaxPoints(3));
+        Matrix matrix = result.getMatrixes().iterator().next();
+        assertEquals(3, matrix.getCount());
+        assertEquals(600_000, matrix.getTimestamp(1) - matrix.getTimestamp(0));
+    }
+
+    @Test
+    void instant() {
+        Result result = repository.query(Query.create(StoreRepository.TYPE, "latency{service=\"api\"}").withInstant(true)
+                .withEnd(toZonedDateTime(START + MINUTES * 60_000L - 1)));
+        assertEquals(Result.Type.VECTOR, result.getType());
+        assertEquals(2, result.getVectors().size());
+        Map<String, Vector> vectors = new HashMap<>();
+        result.getVectors().forEach(vector -> vectors.put(vector.getMetric().getLabel("host"), vector));
+        assertEquals(10, vectors.get("h1").getValue().getValue(), 0.001);
+        assertEquals(20, vectors.get("h2").getValue().getValue(), 0.001);
+    }
+
+    @Test
+    void instantFromLastValues() {
+        long timestamp = System.currentTimeMillis() - 1_000;
+        store.add(Metric.create("latency", "service", "api", "host", "h1"), Value.create(timestamp, 15));
+        Result result = repository.query(Query.create(StoreRepository.TYPE, "latency{service=\"api\"}").withInstant(true)
+                .withStep(ofMinutes(1)));
+        assertEquals(1, result.getVectors().size());
+        Vector vector = result.getVectors().iterator().next();
+        assertEquals("h1", vector.getMetric().getLabel("host"));
+        assertEquals(15, vector.getValue().getValue(), 0.001);
+        assertEquals(timestamp, vector.getValue().getTimestamp());
+    }
+
+    @Test
+    void top() {
+        Result result = repository.query(createQuery("topk(2, latency)"));
+        List<Matrix> matrixes = new ArrayList<>(result.getMatrixes());
+        assertEquals(2, matrixes.size());
+        assertEquals("h1", matrixes.get(0).getMetric().getLabel("host"));
+        assertEquals("web", matrixes.get(0).getMetric().getLabel("service"));
+        assertEquals("h2", matrixes.get(1).getMetric().getLabel("host"));
+        assertEquals(MINUTES / 5, matrixes.get(0).getCount());
+        result = repository.query(createQuery("topk(1, sum by (service) (latency), avg)"));
+        assertEquals(1, result.getMatrixes().size());
+        assertEquals(30, result.getMatrixes().iterator().next().getFirst().get().getValue(), 0.001);
+    }
+
+    @Test
+    void timeOut() {
+        Result result = repository.query(createQuery("sum by (service) (latency)").withTimeOut(Duration.ZERO));
+        assertFalse(result.isSuccessful());
+        assertTrue(result.getMessage().contains("timed out"));
+    }
+
+    @Test
+    void invalidQuery() {
+        Result result = repository.query(createQuery("sum by (service (latency)"));
+        assertFalse(result.isSuccessful());
+        assertNotNull(result.getMessage());
+    }
+
+    @Test
+    void stream() throws InterruptedException {
+        Query query = createQuery("latency");
+        Map<Metric, Integer> counts = new HashMap<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        repository.stream(query).subscribe(new Flow.Subscriber<>() {
+
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(MatrixChunk chunk) {
+                counts.merge(chunk.getMetric(), chunk.getCount(), Integer::sum);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        Result result = repository.query(query);
+        assertEquals(3, counts.size());
+        for (Matrix matrix : result.getMatrixes()) {
+            assertEquals(matrix.getCount(), (int) counts.get(matrix.getMetric()));
+        }
+    }
+
+    private Query createQuery(String text) {
+        return Query.create(StoreRepository.TYPE, text).withStep(ofMinutes(5))
+                .withStartTime(toZonedDateTime(START)).withEnd(toZonedDateTime(START + MINUTES * 60_000L - 1));
+    }
+
+    private ZonedDateTime toZonedDateTime(long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault());
+    }
+
+    private void addValues(Metric metric, float value) {
+        for (int i = 0; i < MINUTES * 6; i++) {
+            store.add(metric, Value.create(START + i * 10_000L, value));
+        }
+    }
+}
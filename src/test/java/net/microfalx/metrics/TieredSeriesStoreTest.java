@@ -0,0 +1,71 @@
+package net.microfalx.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TieredSeriesStoreTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.now();
+
+    private TieredSeriesStore store;
+    private final Metric metric1 = Metric.create("m1");
+
+    @BeforeEach
+    void setup() {
+        store = (TieredSeriesStore) SeriesStore.tiered("tiered_" + System.currentTimeMillis());
+        store.setHotWindow(Duration.ofMinutes(10));
+    }
+
+    @Test
+    void addRecent() {
+        addValues(NOW.minusMinutes(5), 5);
+        store.flush();
+        assertEquals(5, store.get(metric1).getCount());
+    }
+
+    @Test
+    void spill() {
+        addValues(NOW.minusMinutes(30), 10);
+        addValues(NOW.minusMinutes(5), 5);
+        store.flush();
+        Series series = store.get(metric1);
+        assertEquals(15, series.getCount());
+        assertTrue(MetricUtils.isSorted(series.getValues()));
+        assertEquals(10, store.get(metric1, NOW.minusMinutes(31), NOW.minusMinutes(15)).getCount());
+        assertEquals(5, store.get(metric1, NOW.minusMinutes(6), NOW).getCount());
+        assertEquals(15, store.get(metric1, NOW.minusMinutes(31), NOW).getCount());
+    }
+
+    @Test
+    void flushTwice() {
+        addValues(NOW.minusMinutes(30), 10);
+        store.flush();
+        store.flush();
+        assertEquals(10, store.get(metric1).getCount());
+    }
+
+    @Test
+    void merge() {
+        SeriesStore source = SeriesStore.memory();
+        for (int i = 0; i < 5; i++) {
+            source.add(metric1, Value.create(NOW.minusMinutes(30).plusSeconds(i), i));
+        }
+        store.add(source);
+        assertEquals(5, store.get(metric1).getCount());
+        store.flush();
+        assertEquals(5, store.get(metric1).getCount());
+        assertEquals(4, store.getLast(metric1).orElseThrow().getValue(), 0.001);
+    }
+
+    private void addValues(LocalDateTime start, int count) {
+        for (int i = 0; i < count; i++) {
+            store.add(metric1, Value.create(start.plusSeconds(i), i));
+        }
+    }
+}